@@ -0,0 +1,87 @@
+package aegis.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Packs a folder of small files into one archive and extracts them all again, to compare with encrypting the
+ * same folder file by file in BatchBenchmark. The originals are left alone, wiping them is measured by
+ * SecureDeleteBenchmark.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ArchiveBenchmark {
+    @Param({"1000", "10000"})
+    public int files;
+
+    @Param({"4096"})
+    public int size;
+
+    private Engine engine;
+    private Object encryptSession;
+    private Object decryptSession;
+    private File directory;
+    private File archive;
+    private File extracted;
+    private List<File> originals;
+    private List<String> names;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        engine = new Engine();
+        encryptSession = engine.session("benchmark-password", true);
+        decryptSession = engine.session("benchmark-password", false);
+
+        directory = Files.createTempDirectory("aegis-bench").toFile();
+        File source = new File(directory, "source");
+        source.mkdir();
+        originals = new ArrayList<>(files);
+        names = new ArrayList<>(files);
+        for (int i = 0; i < files; i++) {
+            File file = new File(source, "file" + i + ".bin");
+            ProcessFileBenchmark.writeRandom(file, size, i);
+            originals.add(file);
+            names.add(file.getName());
+        }
+        archive = new File(directory, "files.aegisar");
+        extracted = new File(directory, "extracted");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Benchmarks.deleteRecursively(directory);
+    }
+
+    // Neither the archive nor the extracted files may exist yet, so both are removed again at the end
+    @Benchmark
+    public int packAndUnpack() {
+        engine.pack(originals, names, archive, encryptSession);
+        extracted.mkdir();
+        int count = engine.unpack(archive, extracted, decryptSession);
+        Benchmarks.deleteRecursively(extracted);
+        archive.delete();
+        return count;
+    }
+}
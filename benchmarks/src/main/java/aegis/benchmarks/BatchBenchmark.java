@@ -0,0 +1,87 @@
+package aegis.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encrypts and then decrypts a folder of files through BatchProcessor, with and without -Daegis.dedup. The
+ * files are filled from a few distinct contents, so most of them have an identical twin. The batch journal is
+ * turned off so the numbers don't depend on how fast the disk syncs.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BatchBenchmark {
+    private static final int FILES = 256;
+    private static final int SIZE = 256 * 1024;
+
+    // How many different contents the files are filled from, FILES means no duplicates at all
+    @Param({"16", "256"})
+    public int distinct;
+
+    @Param({"false", "true"})
+    public String dedup;
+
+    private Engine engine;
+    private Object encryptSession;
+    private Object decryptSession;
+    private File directory;
+    private List<File> files;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        System.setProperty("aegis.dedup", dedup);
+        System.setProperty("aegis.journal", "false");
+
+        engine = new Engine();
+        encryptSession = engine.session("benchmark-password", true);
+        decryptSession = engine.session("benchmark-password", false);
+
+        directory = Files.createTempDirectory("aegis-bench").toFile();
+        List<File> contents = new ArrayList<>(distinct);
+        files = new ArrayList<>(FILES);
+        for (int i = 0; i < FILES; i++) {
+            File file = new File(directory, "file" + i + ".bin");
+            if (i < distinct) {
+                ProcessFileBenchmark.writeRandom(file, SIZE, i);
+                contents.add(file);
+            } else {
+                Files.copy(contents.get(i % distinct).toPath(), file.toPath());
+            }
+            files.add(file);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Benchmarks.deleteRecursively(directory);
+    }
+
+    // Both batches replace the files where they are, so every call starts from the same plaintext
+    @Benchmark
+    public void roundTrip() {
+        engine.processBatch(files, encryptSession, Runtime.getRuntime().availableProcessors());
+        engine.processBatch(files, decryptSession, Runtime.getRuntime().availableProcessors());
+    }
+}
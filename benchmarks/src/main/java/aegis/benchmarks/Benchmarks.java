@@ -0,0 +1,22 @@
+package aegis.benchmarks;
+
+import java.io.File;
+
+// Helpers shared by the benchmarks
+final class Benchmarks {
+    private Benchmarks() {
+    }
+
+    static void deleteRecursively(File file) {
+        if (file == null) {
+            return;
+        }
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,98 @@
+package aegis.benchmarks;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encrypts and decrypts one file with -Daegis.compression set to none or deflate. Text compresses well,
+ * random data shows what the entropy check costs on files that are left as they are. Like
+ * ProcessFileBenchmark this relies on a fresh fork per parameter combination.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompressionBenchmark {
+    @Param({"1048576", "67108864"})
+    public int size;
+
+    @Param({"none", "deflate"})
+    public String compression;
+
+    @Param({"text", "random"})
+    public String content;
+
+    private Engine engine;
+    private Object encryptSession;
+    private Object decryptSession;
+    private File directory;
+    private File plain;
+    private File encrypted;
+    private File decrypted;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        System.setProperty("aegis.compression", compression);
+
+        engine = new Engine();
+        encryptSession = engine.session("benchmark-password", true);
+        decryptSession = engine.session("benchmark-password", false);
+
+        directory = Files.createTempDirectory("aegis-bench").toFile();
+        plain = new File(directory, "plain.bin");
+        encrypted = new File(directory, "plain.bin.aegis");
+        decrypted = new File(directory, "decrypted.bin");
+        if (content.equals("text")) {
+            writeText(plain, size);
+        } else {
+            ProcessFileBenchmark.writeRandom(plain, size);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Benchmarks.deleteRecursively(directory);
+    }
+
+    @Benchmark
+    public void roundTrip() {
+        engine.processFile(plain, encrypted, encryptSession);
+        engine.processFile(encrypted, decrypted, decryptSession);
+    }
+
+    // Rows of a CSV export, which is what compression is meant for
+    static void writeText(File file, long size) throws IOException {
+        Random random = new Random(42);
+        String[] cities = {"Amsterdam", "Berlin", "Lisbon", "Oslo", "Toronto", "Vienna"};
+        StringBuilder row = new StringBuilder();
+        try (BufferedWriter out = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+            for (long written = 0; written < size; written += row.length()) {
+                row.setLength(0);
+                row.append(written).append(',').append(cities[random.nextInt(cities.length)]).append(',')
+                        .append(random.nextInt(100000)).append(',').append(random.nextDouble()).append('\n');
+                out.write(row.toString(), 0, (int) Math.min(row.length(), size - written));
+            }
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package aegis.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The duplicate check addFilePanesToDisplay runs on every imported file: build its FileStatus, look its
+ * canonical path up in the table's index, then in the files already seen during this import. Half of the
+ * synthetic import is already in the table, and a tenth of the rest shows up twice.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DuplicateCheckBenchmark {
+    @Param({"10000", "100000"})
+    public int files;
+
+    private Engine engine;
+    private File directory;
+    private Map<String, Object> fileIndex;
+    private List<File> imported;
+
+    @Setup
+    public void setUp() throws IOException {
+        engine = new Engine();
+        directory = Files.createTempDirectory("aegis-bench").toFile();
+
+        // Spread over folders like a real tree, canonicalization only needs the folders to exist
+        int folders = Math.max(1, files / 1000);
+        for (int i = 0; i < folders; i++) {
+            new File(directory, "folder" + i).mkdir();
+        }
+
+        fileIndex = new ConcurrentHashMap<>();
+        imported = new ArrayList<>(files + files / 10);
+        for (int i = 0; i < files; i++) {
+            File file = new File(new File(directory, "folder" + (i % folders)), "file" + i + ".txt");
+            if (i % 2 == 0) {
+                Object status = engine.fileStatus(file);
+                fileIndex.put(engine.pathKey(status), status);
+            } else if (i % 20 == 1) {
+                imported.add(file);
+            }
+            imported.add(file);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        Benchmarks.deleteRecursively(directory);
+    }
+
+    @Benchmark
+    public int importFiles() {
+        Map<String, Object> seen = new ConcurrentHashMap<>();
+        int duplicates = 0;
+        for (File file : imported) {
+            Object status = engine.fileStatus(file);
+            String key = engine.pathKey(status);
+            Object existing = fileIndex.get(key);
+            if (existing == null) {
+                existing = seen.putIfAbsent(key, status);
+            }
+            if (existing != null) {
+                duplicates++;
+            }
+        }
+        return duplicates;
+    }
+}
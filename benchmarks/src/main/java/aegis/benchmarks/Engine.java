@@ -0,0 +1,176 @@
+package aegis.benchmarks;
+
+import java.io.File;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/**
+ * Reaches the app classes by reflection. The app lives in the default package, which can't be imported
+ * from here, and JMH refuses benchmarks in the default package, so this is the narrowest bridge between them.
+ *
+ * Creating an Engine initializes the app classes, so set any aegis.* system properties before that.
+ */
+final class Engine {
+    private final Constructor<?> sessionConstructor;
+    private final Method processFile;
+    private final Method isSuccess;
+    private final Method getDetails;
+    private final Method secureDelete;
+    private final Method wipeFromProperty;
+    private final Method wipe;
+    private final Constructor<?> fileStatusConstructor;
+    private final Method getPathKey;
+    private final Constructor<?> batchConstructor;
+    private final Method runBatch;
+    private final Object silentListener;
+    private final Method pack;
+    private final Method openArchive;
+    private final Method entries;
+    private final Method extract;
+    private final Method getName;
+    private final Object noCancellation;
+
+    Engine() {
+        try {
+            Class<?> aes = Class.forName("AES");
+            Class<?> session = Class.forName("AES$Session");
+            Class<?> result = Class.forName("AES$ProcessingResult");
+            Class<?> cancellation = Class.forName("Cancellation");
+            Class<?> secureWipe = Class.forName("SecureWipe");
+            Class<?> fileStatus = Class.forName("Aegis$FileStatus");
+
+            sessionConstructor = session.getConstructor(String.class, boolean.class);
+            processFile = aes.getMethod("processFile", File.class, File.class, session, cancellation);
+            isSuccess = result.getMethod("isSuccess");
+            getDetails = result.getMethod("getDetails");
+            secureDelete = aes.getMethod("secureDelete", File.class, File.class, boolean.class);
+            noCancellation = cancellation.getField("NEVER").get(null);
+
+            wipeFromProperty = secureWipe.getDeclaredMethod("fromProperty", String.class);
+            wipeFromProperty.setAccessible(true);
+            wipe = secureWipe.getMethod("wipe", FileChannel.class);
+
+            fileStatusConstructor = fileStatus.getDeclaredConstructor(File.class);
+            fileStatusConstructor.setAccessible(true);
+            getPathKey = fileStatus.getDeclaredMethod("getPathKey");
+            getPathKey.setAccessible(true);
+
+            Class<?> batchProcessor = Class.forName("BatchProcessor");
+            Class<?> listener = Class.forName("BatchProcessor$Listener");
+            batchConstructor = batchProcessor.getConstructor(int.class, int.class);
+            runBatch = batchProcessor.getMethod("run", List.class, session, cancellation, listener);
+            silentListener = Proxy.newProxyInstance(listener.getClassLoader(), new Class<?>[] {listener},
+                    (proxy, method, args) -> method.getDeclaringClass() == Object.class
+                            ? method.invoke(this, args) : null);
+
+            Class<?> archiveCipher = Class.forName("ArchiveCipher");
+            Class<?> reader = Class.forName("ArchiveCipher$Reader");
+            Class<?> entry = Class.forName("ArchiveCipher$Entry");
+            pack = archiveCipher.getMethod("pack", List.class, List.class, File.class, session, cancellation);
+            openArchive = archiveCipher.getMethod("open", File.class, session);
+            entries = reader.getMethod("entries");
+            extract = reader.getMethod("extract", entry, File.class);
+            getName = entry.getMethod("getName");
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("App classes don't match the benchmarks: " + e, e);
+        }
+    }
+
+    Object session(String password, boolean isEncryption) {
+        return newInstance(sessionConstructor, password, isEncryption);
+    }
+
+    void processFile(File original, File aegisFile, Object session) {
+        Object result = invoke(processFile, null, original, aegisFile, session, noCancellation);
+        if (!(Boolean) invoke(isSuccess, result)) {
+            throw new IllegalStateException("Processing " + original + " failed: " + invoke(getDetails, result));
+        }
+    }
+
+    void secureDelete(File original, File aegisFile) {
+        invoke(secureDelete, null, original, aegisFile, true);
+    }
+
+    Object secureWipe(String passes) {
+        return invoke(wipeFromProperty, null, passes);
+    }
+
+    void wipe(Object secureWipe, FileChannel channel) {
+        invoke(wipe, secureWipe, channel);
+    }
+
+    Object fileStatus(File file) {
+        return newInstance(fileStatusConstructor, file);
+    }
+
+    String pathKey(Object fileStatus) {
+        return (String) invoke(getPathKey, fileStatus);
+    }
+
+    // Runs a whole batch the way the app does, failing if any file of it failed
+    void processBatch(List<File> files, Object session, int parallelism) {
+        Object processor = newInstance(batchConstructor, parallelism, parallelism);
+        Object[] results = (Object[]) invoke(runBatch, processor, files, session, noCancellation, silentListener);
+        for (int i = 0; i < results.length; i++) {
+            if (results[i] == null || !(Boolean) invoke(isSuccess, results[i])) {
+                throw new IllegalStateException("Processing " + files.get(i) + " failed"
+                        + (results[i] == null ? "" : ": " + invoke(getDetails, results[i])));
+            }
+        }
+    }
+
+    void pack(List<File> files, List<String> names, File archive, Object session) {
+        Object result = invoke(pack, null, files, names, archive, session, noCancellation);
+        if (!(Boolean) invoke(isSuccess, result)) {
+            throw new IllegalStateException("Packing " + archive + " failed: " + invoke(getDetails, result));
+        }
+    }
+
+    // Extracts every entry of the archive into the directory, returns how many there were
+    int unpack(File archive, File directory, Object session) {
+        Object reader = invoke(openArchive, null, archive, session);
+        try (AutoCloseable closeable = (AutoCloseable) reader) {
+            List<?> all = (List<?>) invoke(entries, reader);
+            for (Object entry : all) {
+                invoke(extract, reader, entry, new File(directory, (String) invoke(getName, entry)));
+            }
+            return all.size();
+        } catch (Exception e) {
+            throw rethrow(e);
+        }
+    }
+
+    private static Object newInstance(Constructor<?> constructor, Object... args) {
+        try {
+            return constructor.newInstance(args);
+        } catch (InvocationTargetException e) {
+            throw rethrow(e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Object invoke(Method method, Object target, Object... args) {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw rethrow(e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static RuntimeException rethrow(Throwable cause) {
+        if (cause instanceof RuntimeException) {
+            return (RuntimeException) cause;
+        }
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        return new IllegalStateException(cause);
+    }
+}
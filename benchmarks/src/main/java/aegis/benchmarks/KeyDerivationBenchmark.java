@@ -0,0 +1,48 @@
+package aegis.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of starting a batch. An encryption session runs the password KDF once for the batch salt; a
+ * decryption session defers it until the first file, then reuses it for every file of the same batch.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KeyDerivationBenchmark {
+    @Param({"100000", "600000"})
+    public int iterations;
+
+    private Engine engine;
+
+    @Setup
+    public void setUp() {
+        System.setProperty("aegis.kdfIterations", Integer.toString(iterations));
+        engine = new Engine();
+    }
+
+    @Benchmark
+    public Object encryptSession() {
+        return engine.session("benchmark-password", true);
+    }
+
+    @Benchmark
+    public Object decryptSession() {
+        return engine.session("benchmark-password", false);
+    }
+}
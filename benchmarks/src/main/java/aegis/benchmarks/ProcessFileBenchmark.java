@@ -0,0 +1,102 @@
+package aegis.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encrypts and decrypts one file through AES.processFile. The engine picks its format from system
+ * properties read once at class load, so each mode sets them before the app classes are touched; JMH runs
+ * every parameter combination in a fresh fork, which keeps that honest. Don't run this with -f 0.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProcessFileBenchmark {
+    @Param({"4096", "1048576", "67108864"})
+    public int size;
+
+    // sequential: chunks sealed on the calling thread, parallel: chunks spread over the fork-join pool,
+    // inplace: overwrites the original through the journal, which ignores the cipher
+    @Param({"sequential", "parallel", "inplace"})
+    public String mode;
+
+    @Param({"gcm", "ctr"})
+    public String cipher;
+
+    private Engine engine;
+    private Object encryptSession;
+    private Object decryptSession;
+    private File directory;
+    private File plain;
+    private File encrypted;
+    private File decrypted;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        System.setProperty("aegis.cipher", cipher);
+        System.setProperty("aegis.parallelThreshold", mode.equals("parallel") ? "0" : Long.toString(Long.MAX_VALUE));
+        System.setProperty("aegis.inPlace", Boolean.toString(mode.equals("inplace")));
+
+        engine = new Engine();
+        encryptSession = engine.session("benchmark-password", true);
+        decryptSession = engine.session("benchmark-password", false);
+
+        directory = Files.createTempDirectory("aegis-bench").toFile();
+        plain = new File(directory, "plain.bin");
+        encrypted = new File(directory, "plain.bin.aegis");
+        decrypted = new File(directory, "decrypted.bin");
+        writeRandom(plain, size);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Benchmarks.deleteRecursively(directory);
+    }
+
+    @Benchmark
+    public void roundTrip() {
+        if (mode.equals("inplace")) {
+            engine.processFile(plain, encrypted, encryptSession);
+            engine.processFile(plain, encrypted, decryptSession);
+        } else {
+            engine.processFile(plain, encrypted, encryptSession);
+            engine.processFile(encrypted, decrypted, decryptSession);
+        }
+    }
+
+    static void writeRandom(File file, long size) throws IOException {
+        writeRandom(file, size, 42);
+    }
+
+    static void writeRandom(File file, long size, long seed) throws IOException {
+        Random random = new Random(seed);
+        byte[] buffer = new byte[1024 * 1024];
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            for (long written = 0; written < size; written += buffer.length) {
+                random.nextBytes(buffer);
+                out.write(buffer, 0, (int) Math.min(buffer.length, size - written));
+            }
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package aegis.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Overwrites a file with each wipe strategy, and runs the whole AES.secureDelete (wipe, delete, rename)
+ * with the strategy chosen through -Daegis.wipe the same way the app does.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SecureDeleteBenchmark {
+    @Param({"1048576", "67108864"})
+    public int size;
+
+    @Param({"random", "zero", "zero,random"})
+    public String passes;
+
+    private Engine engine;
+    private Object secureWipe;
+    private File directory;
+    private File original;
+    private File aegisFile;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        System.setProperty("aegis.wipe", passes);
+        engine = new Engine();
+        secureWipe = engine.secureWipe(passes);
+        directory = Files.createTempDirectory("aegis-bench").toFile();
+        original = new File(directory, "original.bin");
+        aegisFile = new File(directory, "original.bin.aegis");
+    }
+
+    // secureDelete replaces the original, so both files are written again before every call
+    @Setup(Level.Invocation)
+    public void createFiles() throws IOException {
+        ProcessFileBenchmark.writeRandom(original, size);
+        ProcessFileBenchmark.writeRandom(aegisFile, 16);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Benchmarks.deleteRecursively(directory);
+    }
+
+    @Benchmark
+    public void wipe() throws IOException {
+        try (FileChannel channel = FileChannel.open(original.toPath(), StandardOpenOption.WRITE)) {
+            engine.wipe(secureWipe, channel);
+        }
+    }
+
+    @Benchmark
+    public void secureDelete() {
+        engine.secureDelete(original, aegisFile);
+    }
+}
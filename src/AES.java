@@ -1,18 +1,21 @@
-import javafx.concurrent.Task;
-
-import java.io.*;
-import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
 import java.util.Arrays;
 import javax.crypto.BadPaddingException;
 
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
 public class AES {
@@ -20,10 +23,11 @@ public class AES {
     public enum ProcessingError {
         NONE(""),
         INVALID_KEY("Invalid password"),
-        FILE_TOO_LARGE("File is too large to process"),
         FILE_ACCESS_ERROR("Cannot access file"),
         DECRYPTION_ERROR("Unable to decrypt file. The file might be corrupted or the password is incorrect"),
         ENCRYPTION_ERROR("Unable to encrypt file"),
+        ALREADY_ENCRYPTED("Already encrypted, skipped"),
+        NOT_ENCRYPTED("Not encrypted, skipped"),
         UNKNOWN_ERROR("An unknown error occurred");
 
         private final String message;
@@ -52,142 +56,357 @@ public class AES {
         public boolean isSuccess() { return success; }
         public ProcessingError getError() { return error; }
         public String getDetails() { return details; }
+
+        // Skipped files were left untouched, they didn't fail
+        public boolean isSkipped() {
+            return error == ProcessingError.ALREADY_ENCRYPTED || error == ProcessingError.NOT_ENCRYPTED;
+        }
     }
 
-    private static SecretKeySpec secretKey;
-    private static byte[] key;
+    // Size of the chunks streamed through the cipher
+    private static final int CHUNK_SIZE = 1024 * 1024;
 
-    public static void setKey(String myKey) {
-        MessageDigest sha = null;
-        try {
-            key = myKey.getBytes("UTF-8");
-            sha = MessageDigest.getInstance("SHA-1");
-            key = sha.digest(key);
-            key = Arrays.copyOf(key, 16);
-            secretKey = new SecretKeySpec(key, "AES");
-        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
-            e.printStackTrace();
+    // How file contents are read, can be chosen with -Daegis.io=channel|mapped
+    public enum IoMode { CHANNEL, MAPPED }
+
+    private static final IoMode IO_MODE = IoMode.valueOf(System.getProperty("aegis.io", "channel").toUpperCase());
+
+    // Size of the read-only windows mapped at a time in MAPPED mode
+    private static final long MAP_WINDOW = 64L * 1024 * 1024;
+
+    private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0);
+
+    // Encrypt files by overwriting them instead of writing a temporary copy, -Daegis.inPlace=true
+    private static final boolean IN_PLACE = Boolean.getBoolean("aegis.inPlace");
+
+    // Chunks of files at least this large are encrypted and decrypted on every core at once,
+    // can be overridden with -Daegis.parallelThreshold=<bytes>
+    private static final long PARALLEL_THRESHOLD = Long.getLong("aegis.parallelThreshold", 64L * 1024 * 1024);
+
+    // Keys and ciphers for one batch. Password based keys are derived once per salt, and each worker thread
+    // keeps its own initialized cipher, so nothing has to be set up again per file and no state is shared
+    public static class Session {
+        private final KeyDerivation keys;
+        private final KeyDerivation.Params batchParams;
+        private final SecretKeySpec key;
+        private final boolean isEncryption;
+        private final ThreadLocal<Cipher> ciphers;
+
+        public Session(String secret, boolean isEncryption) throws GeneralSecurityException {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(secret.getBytes(StandardCharsets.UTF_8));
+            this.keys = new KeyDerivation(secret);
+            this.key = new SecretKeySpec(Arrays.copyOf(digest, 16), "AES");
+            this.isEncryption = isEncryption;
+            this.ciphers = ThreadLocal.withInitial(() -> {
+                try {
+                    return initCipher(Cipher.getInstance("AES/ECB/PKCS5Padding"));
+                } catch (GeneralSecurityException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+
+            // Fail here rather than on every file if the keys can't be used, e.g. on an old Java 8
+            // without the unlimited strength policy, which rejects 256 bit keys
+            Cipher.getInstance("AES/GCM/NoPadding").init(Cipher.ENCRYPT_MODE, new SecretKeySpec(new byte[32], "AES"),
+                    new GCMParameterSpec(128, new byte[12]));
+            initCipher(Cipher.getInstance("AES/ECB/PKCS5Padding"));
+
+            // Every file of an encryption batch shares one salt, derived here so no worker waits on it
+            this.batchParams = isEncryption ? KeyDerivation.Params.create() : null;
+            if (isEncryption) {
+                keys.masterKey(batchParams);
+            }
         }
-    }
 
-    public static ProcessingResult processFile(File original, File aegisFile, String secret, boolean isEncryption, Task<Void> task) {
-        if (task.isCancelled()) {
-            return new ProcessingResult(false, ProcessingError.NONE, "Operation cancelled by user");
+        // Key of the older formats, only still used to decrypt old files
+        public SecretKeySpec getKey() { return key; }
+        public boolean isEncryption() { return isEncryption; }
+
+        // Key derivation parameters written to the files of this batch
+        KeyDerivation.Params batchParams() {
+            return batchParams;
+        }
+
+        // AES-256 key for one file of the authenticated format, bound to that file's random salt
+        // so no two files share a key even when they share the expensive master key
+        SecretKeySpec fileKey(KeyDerivation.Params params, byte[] salt) throws GeneralSecurityException {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(keys.masterKey(params));
+            mac.update("aegis-file-key".getBytes(StandardCharsets.UTF_8));
+            return new SecretKeySpec(mac.doFinal(salt), "AES");
         }
 
-        // Check file size before processing
-        long fileSize = original.length();
-        long maxSize = Runtime.getRuntime().maxMemory() - (100 * 1024 * 1024); // Leave 100MB buffer
-        if (fileSize > maxSize) {
-            return new ProcessingResult(false, ProcessingError.FILE_TOO_LARGE,
-                    String.format("File size %.2f MB exceeds maximum supported size %.2f MB",
-                            fileSize / (1024.0 * 1024.0), maxSize / (1024.0 * 1024.0)));
+        Cipher cipher() {
+            return ciphers.get();
         }
 
-        FileInputStream inputStream = null;
-        FileOutputStream outputStream = null;
-        byte[] input = null;
+        // Brings a cipher back to its freshly initialized state after a file was abandoned halfway through
+        void reset(Cipher cipher) {
+            try {
+                initCipher(cipher);
+            } catch (InvalidKeyException e) {
+                ciphers.remove();
+            }
+        }
+
+        private Cipher initCipher(Cipher cipher) throws InvalidKeyException {
+            cipher.init(isEncryption ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE, key);
+            return cipher;
+        }
+    }
 
+    // In-place files need no temporary file and no secure delete afterwards. An interrupted in-place run
+    // is always finished in place, whatever the current mode
+    public static boolean processesInPlace(File original, FileFormat format, boolean isEncryption) {
+        if (InPlaceCipher.journalFor(original).exists()) {
+            return true;
+        }
+        return isEncryption
+                ? IN_PLACE && !format.isEncrypted() && InPlaceCipher.canEncrypt(original)
+                : format == FileFormat.IN_PLACE;
+    }
+
+    public static ProcessingResult processFile(File original, File aegisFile, Session session, Cancellation cancellation) {
+        return processFile(original, aegisFile, session, FileFormat.probe(original), cancellation);
+    }
+
+    // The format comes from FileFormat.probe, so callers that already probed don't read the file twice
+    public static ProcessingResult processFile(File original, File aegisFile, Session session, FileFormat format,
+                                               Cancellation cancellation) {
+        if (cancellation.isCancelled()) {
+            return new ProcessingResult(false, ProcessingError.NONE, "Operation cancelled by user");
+        }
+
+        boolean isEncryption = session.isEncryption();
         try {
-            setKey(secret);
-            Cipher cipher = Cipher.getInstance("AES/ECB/PKCS5Padding");
-            cipher.init(isEncryption ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE, secretKey);
+            if (processesInPlace(original, format, isEncryption)) {
+                return InPlaceCipher.process(original, session, isEncryption);
+            }
 
-            // Read file
-            try {
-                inputStream = new FileInputStream(original);
-                input = Files.readAllBytes(Paths.get(original.toURI()));
-                inputStream.close();
-            } catch (IOException e) {
-                return new ProcessingResult(false, ProcessingError.FILE_ACCESS_ERROR,
-                        "Could not read file: " + e.getMessage());
+            if (isEncryption) {
+                // Encrypting twice would only mean having to decrypt twice
+                if (format.isEncrypted()) {
+                    return new ProcessingResult(false, ProcessingError.ALREADY_ENCRYPTED, describe(format));
+                }
+                return AeadCipher.process(original, aegisFile, session, true, PARALLEL_THRESHOLD, cancellation);
             }
 
-            if (task.isCancelled()) {
-                return new ProcessingResult(false, ProcessingError.NONE, "Operation cancelled by user");
+            switch (format) {
+                case AUTHENTICATED:
+                    return AeadCipher.process(original, aegisFile, session, false, PARALLEL_THRESHOLD, cancellation);
+                case CHUNKED_CTR:
+                    return ParallelCipher.decrypt(original, aegisFile, session.getKey(), cancellation);
+                case ARCHIVE:
+                    return new ProcessingResult(false, ProcessingError.DECRYPTION_ERROR,
+                            "This is an archive, extract it with the unpack command");
+                case UNSUPPORTED:
+                    return new ProcessingResult(false, ProcessingError.DECRYPTION_ERROR,
+                            "This file was made by a newer version of Aegis");
+                default:
+                    break;
             }
 
-            // Process file
-            byte[] outputBytes;
-            try {
-                outputBytes = cipher.doFinal(input);
-            } catch (BadPaddingException e) {
-                return new ProcessingResult(false,
-                        isEncryption ? ProcessingError.ENCRYPTION_ERROR : ProcessingError.DECRYPTION_ERROR,
-                        e.getMessage());
-            } catch (IllegalBlockSizeException e) {
-                return new ProcessingResult(false,
-                        isEncryption ? ProcessingError.ENCRYPTION_ERROR : ProcessingError.DECRYPTION_ERROR,
-                        "Invalid data block size: " + e.getMessage());
+            // Without a header this can only be a file from the first version, whose ECB output is always
+            // a whole number of blocks. Anything else is plaintext
+            long length = original.length();
+            if (length == 0 || length % 16 != 0) {
+                return new ProcessingResult(false, ProcessingError.NOT_ENCRYPTED, "No Aegis header");
             }
 
-            // Write output
+            FileChannel inputChannel;
             try {
-                outputStream = new FileOutputStream(aegisFile);
-                outputStream.write(outputBytes);
-                outputStream.close();
+                inputChannel = FileChannel.open(original.toPath(), StandardOpenOption.READ);
             } catch (IOException e) {
                 return new ProcessingResult(false, ProcessingError.FILE_ACCESS_ERROR,
-                        "Could not write output file: " + e.getMessage());
+                        "Could not read file: " + e.getMessage());
             }
 
-            return new ProcessingResult(true, ProcessingError.NONE, "");
+            try (FileChannel in = inputChannel) {
+                FileChannel outputChannel;
+                try {
+                    outputChannel = FileChannel.open(aegisFile.toPath(), StandardOpenOption.WRITE,
+                            StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+                } catch (IOException e) {
+                    return new ProcessingResult(false, ProcessingError.FILE_ACCESS_ERROR,
+                            "Could not write output file: " + e.getMessage());
+                }
+
+                try (FileChannel out = outputChannel) {
+                    Cipher cipher = session.cipher();
+                    ProcessingResult result = null;
+                    try {
+                        result = checkPadding(cipher, in);
+                        if (result == null) {
+                            result = streamFile(cipher, in, out, cancellation);
+                        }
+                        return result;
+                    } finally {
+                        if (result == null || !result.isSuccess()) {
+                            session.reset(cipher);
+                        }
+                    }
+                }
+            }
 
-        } catch (InvalidKeyException e) {
-            return new ProcessingResult(false, ProcessingError.INVALID_KEY, e.getMessage());
         } catch (Exception e) {
             return new ProcessingResult(false, ProcessingError.UNKNOWN_ERROR, e.getMessage());
-        } finally {
-            // Clean up resources
-            try {
-                if (inputStream != null) inputStream.close();
-                if (outputStream != null) outputStream.close();
-            } catch (IOException e) {
-                System.err.println("Error closing streams: " + e.getMessage());
-            }
         }
     }
 
-    public static void secureDelete(File original, File aegisFile, boolean isProcessSuccessful) {
-        if (isProcessSuccessful) {
-            try {
-                // Get file size
-                long length = original.length();
-
-                // First overwrite with zeros
-                try (FileOutputStream out = new FileOutputStream(original)) {
-                    byte[] zeros = new byte[4096];
-                    long remaining = length;
-                    while (remaining > 0) {
-                        int size = (int) Math.min(zeros.length, remaining);
-                        out.write(zeros, 0, size);
-                        remaining -= size;
+    private static String describe(FileFormat format) {
+        return format == FileFormat.UNSUPPORTED ? "Made by a newer version of Aegis" : "Has an Aegis header";
+    }
+
+    // ECB blocks decrypt on their own and only the last one holds the padding, so a file that isn't ECB
+    // output under this password is nearly always rejected after one block instead of after the whole file.
+    // Returns null when the padding is valid; doFinal leaves the cipher ready for the full run either way
+    private static ProcessingResult checkPadding(Cipher cipher, FileChannel in) throws IOException {
+        ByteBuffer last = ByteBuffer.allocate(16);
+        readFully(in, last, in.size() - 16);
+        try {
+            cipher.doFinal(last.array());
+            return null;
+        } catch (BadPaddingException | IllegalBlockSizeException e) {
+            return new ProcessingResult(false, ProcessingError.DECRYPTION_ERROR,
+                    "Not an Aegis file, or the password is incorrect");
+        }
+    }
+
+    // Decrypts files of the original ECB format. Pushes the file through the cipher one chunk at a time so memory use stays the same whatever the file size
+    private static ProcessingResult streamFile(Cipher cipher, FileChannel in, FileChannel out,
+                                               Cancellation cancellation) {
+        // Direct buffers from the shared pool, so the kernel can copy straight in and out of them
+        ByteBuffer input = null;
+        ByteBuffer output = BufferPool.direct(CHUNK_SIZE + 32);
+
+        try {
+            if (IO_MODE == IoMode.MAPPED) {
+                long size = in.size();
+                for (long position = 0; position < size; position += MAP_WINDOW) {
+                    MappedByteBuffer window;
+                    long start = System.nanoTime();
+                    try {
+                        window = in.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_WINDOW, size - position));
+                        // Pages are only read once the cipher touches them, so that time counts as cipher time
+                        Metrics.record(Metrics.Phase.READ, start, window.remaining());
+                    } catch (IOException e) {
+                        return new ProcessingResult(false, ProcessingError.FILE_ACCESS_ERROR,
+                                "Could not read file: " + e.getMessage());
                     }
-                }
 
-                // Then overwrite with random data
-                SecureRandom random = new SecureRandom();
-                try (FileOutputStream out = new FileOutputStream(original)) {
-                    byte[] randomData = new byte[4096];
-                    long remaining = length;
-                    while (remaining > 0) {
-                        random.nextBytes(randomData);
-                        int size = (int) Math.min(randomData.length, remaining);
-                        out.write(randomData, 0, size);
-                        remaining -= size;
+                    while (window.hasRemaining()) {
+                        if (cancellation.isCancelled()) {
+                            return new ProcessingResult(false, ProcessingError.NONE, "Operation cancelled by user");
+                        }
+
+                        ByteBuffer chunk = window.slice();
+                        chunk.limit(Math.min(CHUNK_SIZE, chunk.remaining()));
+                        window.position(window.position() + chunk.limit());
+
+                        output.clear();
+                        start = System.nanoTime();
+                        int chunkSize = chunk.remaining();
+                        cipher.update(chunk, output);
+                        Metrics.record(Metrics.Phase.CIPHER, start, chunkSize);
+                        ProcessingResult failure = writeOutput(out, output);
+                        if (failure != null) {
+                            return failure;
+                        }
                     }
                 }
+            } else {
+                input = BufferPool.direct(CHUNK_SIZE);
+                while (true) {
+                    input.clear();
+                    input.limit(CHUNK_SIZE);
+                    long start = System.nanoTime();
+                    try {
+                        int read = in.read(input);
+                        if (read == -1) {
+                            break;
+                        }
+                        Metrics.record(Metrics.Phase.READ, start, read);
+                    } catch (IOException e) {
+                        return new ProcessingResult(false, ProcessingError.FILE_ACCESS_ERROR,
+                                "Could not read file: " + e.getMessage());
+                    }
 
-                // Delete and rename
-                if (!original.delete()) {
-                    System.err.println("Warning: Could not delete original file");
-                    return;
-                }
-                if (!aegisFile.renameTo(original)) {
-                    System.err.println("Error: Could not rename temporary file");
+                    if (cancellation.isCancelled()) {
+                        return new ProcessingResult(false, ProcessingError.NONE, "Operation cancelled by user");
+                    }
+
+                    input.flip();
+                    output.clear();
+                    start = System.nanoTime();
+                    int size = input.remaining();
+                    cipher.update(input, output);
+                    Metrics.record(Metrics.Phase.CIPHER, start, size);
+                    ProcessingResult failure = writeOutput(out, output);
+                    if (failure != null) {
+                        return failure;
+                    }
                 }
-            } catch (IOException e) {
-                System.err.println("Error during secure delete: " + e.getMessage());
+            }
+
+            output.clear();
+            cipher.doFinal(EMPTY_BUFFER.duplicate(), output);
+            ProcessingResult failure = writeOutput(out, output);
+            if (failure != null) {
+                return failure;
+            }
+        } catch (BadPaddingException e) {
+            return new ProcessingResult(false, ProcessingError.DECRYPTION_ERROR, e.getMessage());
+        } catch (IllegalBlockSizeException e) {
+            return new ProcessingResult(false, ProcessingError.DECRYPTION_ERROR,
+                    "Invalid data block size: " + e.getMessage());
+        } catch (ShortBufferException | IOException e) {
+            return new ProcessingResult(false, ProcessingError.UNKNOWN_ERROR, e.getMessage());
+        } finally {
+            if (input != null) {
+                BufferPool.release(input);
+            }
+            BufferPool.release(output);
+        }
+
+        return new ProcessingResult(true, ProcessingError.NONE, "");
+    }
+
+    private static ProcessingResult writeOutput(FileChannel out, ByteBuffer output) {
+        output.flip();
+        long start = System.nanoTime();
+        int size = output.remaining();
+        try {
+            while (output.hasRemaining()) {
+                out.write(output);
+            }
+            Metrics.record(Metrics.Phase.WRITE, start, size);
+            return null;
+        } catch (IOException e) {
+            return new ProcessingResult(false, ProcessingError.FILE_ACCESS_ERROR,
+                    "Could not write output file: " + e.getMessage());
+        }
+    }
+
+    static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+            position += read;
+        }
+    }
+
+    static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    public static void secureDelete(File original, File aegisFile, boolean isProcessSuccessful) {
+        if (isProcessSuccessful) {
+            if (wipeOriginal(original)) {
+                replaceOriginal(original, aegisFile);
             }
         } else {
             // Clean up temporary file
@@ -196,4 +415,36 @@ public class AES {
             }
         }
     }
-}
\ No newline at end of file
+
+    // First half of a secure delete, overwrites the original once its replacement has been written
+    static boolean wipeOriginal(File original) {
+        // Overwrite in place through a channel; reopening with a stream would truncate the file first
+        // and let the file system hand out new blocks instead of overwriting the old ones
+        long start = System.nanoTime();
+        try (FileChannel channel = FileChannel.open(original.toPath(), StandardOpenOption.WRITE)) {
+            long size = channel.size();
+            SecureWipe.DEFAULT.wipe(channel);
+            Metrics.record(Metrics.Phase.WIPE, start, size);
+            return true;
+        } catch (IOException e) {
+            System.err.println("Error during secure delete: " + e.getMessage());
+            return false;
+        }
+    }
+
+    // Second half, moves the processed file into the place of the wiped original
+    static boolean replaceOriginal(File original, File aegisFile) {
+        long start = System.nanoTime();
+        // Delete and rename
+        if (original.exists() && !original.delete()) {
+            System.err.println("Warning: Could not delete original file");
+            return false;
+        }
+        if (!aegisFile.renameTo(original)) {
+            System.err.println("Error: Could not rename temporary file");
+            return false;
+        }
+        Metrics.record(Metrics.Phase.RENAME, start, 0);
+        return true;
+    }
+}
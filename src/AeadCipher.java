@@ -0,0 +1,801 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Authenticated format used for every newly encrypted file. The file is cut into chunks that are each
+ * sealed on their own with AES-256-GCM, or AES-256-CTR followed by an HMAC-SHA256 tag, under a key derived
+ * from the password's master key (see KeyDerivation) and a per-file salt. Every chunk carries a 16 byte tag
+ * and authenticates the header, so chunks can be handled by any thread in any order and a damaged file is
+ * rejected at the first bad chunk.
+ *
+ * Layout: magic (8) | algorithm (1) | compression (1) | chunk size (4) | kdf algorithm (1) | kdf iterations (4) |
+ *         kdf salt (16) | salt (16) | nonce (8) | plaintext length (8) | key check (16) |
+ *         chunks, each ciphertext (up to chunk size) | tag (16)
+ *
+ * Compressed files seal each chunk deflated on its own behind a flag byte, or stored as it was when deflating
+ * doesn't make it smaller, and prefix it with its sealed length: length (4) | ciphertext | tag (16). Chunks can
+ * then only be found one after another, so compressed files don't spread over the cores.
+ *
+ * Version 2 files have no compression field, version 1 files have no kdf fields either and use a plain SHA-256
+ * of the password as the master key.
+ *
+ * The cipher for new files is chosen with -Daegis.cipher=gcm|ctr, the default is gcm. -Daegis.compression=deflate
+ * compresses new files unless samples of them look compressed already, the default is none.
+ */
+public class AeadCipher {
+    public enum Algorithm {
+        GCM(1), CTR_HMAC(2);
+
+        private final byte id;
+
+        Algorithm(int id) {
+            this.id = (byte) id;
+        }
+
+        static Algorithm fromId(byte id) {
+            for (Algorithm algorithm : values()) {
+                if (algorithm.id == id) {
+                    return algorithm;
+                }
+            }
+            return null;
+        }
+    }
+
+    public enum Compression {
+        NONE(0), DEFLATE(1);
+
+        private final byte id;
+
+        Compression(int id) {
+            this.id = (byte) id;
+        }
+
+        static Compression fromId(byte id) {
+            for (Compression compression : values()) {
+                if (compression.id == id) {
+                    return compression;
+                }
+            }
+            return null;
+        }
+    }
+
+    private static final byte[] MAGIC = FileFormat.AUTHENTICATED.magic();
+    private static final byte[] V2_MAGIC = {'A', 'E', 'G', 'I', 'S', 'A', 'E', '2'};
+    private static final byte[] V1_MAGIC = {'A', 'E', 'G', 'I', 'S', 'A', 'E', '1'};
+    static final int SALT_SIZE = 16;
+    static final int NONCE_SIZE = 8;
+    static final int KEY_CHECK_SIZE = 16;
+    static final int TAG_SIZE = 16;
+    private static final int V1_HEADER_SIZE = MAGIC.length + 1 + 4 + SALT_SIZE + NONCE_SIZE + 8 + KEY_CHECK_SIZE;
+    private static final int V2_HEADER_SIZE = V1_HEADER_SIZE + KeyDerivation.PARAMS_SIZE;
+    static final int HEADER_SIZE = V2_HEADER_SIZE + 1;
+    // Sealed length in front of each chunk of a compressed file, and the flag that starts its plaintext
+    private static final int LENGTH_SIZE = 4;
+    private static final int FLAG_SIZE = 1;
+    private static final byte STORED = 0;
+    private static final byte DEFLATED = 1;
+
+    // Small enough that medium sized files still spread over every core, large enough that the
+    // per-chunk tag and cipher setup don't matter
+    static final int CHUNK_SIZE = 1024 * 1024;
+    private static final int MAX_CHUNK_SIZE = 64 * 1024 * 1024;
+    private static final int BLOCK_SIZE = 16;
+
+    static final Algorithm DEFAULT_ALGORITHM = fromProperty(System.getProperty("aegis.cipher", "gcm"));
+    static final Compression DEFAULT_COMPRESSION = compressionFromProperty(System.getProperty("aegis.compression", "none"));
+
+    // Bytes looked at in the start and the middle of a file to decide whether to compress it. Above this many
+    // bits of entropy per byte a file is taken to be compressed or encrypted already, e.g. media or archives
+    private static final int SAMPLE_SIZE = 64 * 1024;
+    private static final double MAX_COMPRESSIBLE_ENTROPY = 7.5;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    // One set of primitives per thread, reused for every chunk that thread handles. Chunk buffers come from the
+    // BufferPool instead, so idle threads don't each hold on to one
+    private static final ThreadLocal<Deflater> DEFLATERS = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+    private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(Inflater::new);
+    private static final ThreadLocal<Cipher> GCM_CIPHERS = ThreadLocal.withInitial(() -> cipher("AES/GCM/NoPadding"));
+    private static final ThreadLocal<Cipher> CTR_CIPHERS = ThreadLocal.withInitial(() -> cipher("AES/CTR/NoPadding"));
+    private static final ThreadLocal<Mac> MACS = ThreadLocal.withInitial(() -> {
+        try {
+            return Mac.getInstance("HmacSHA256");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 is not available", e);
+        }
+    });
+
+    static Algorithm fromProperty(String value) {
+        switch (value.trim().toLowerCase(Locale.ROOT)) {
+            case "gcm":
+                return Algorithm.GCM;
+            case "ctr":
+                return Algorithm.CTR_HMAC;
+            default:
+                System.err.println("Warning: Unknown cipher \"" + value + "\", using gcm");
+                return Algorithm.GCM;
+        }
+    }
+
+    static Compression compressionFromProperty(String value) {
+        switch (value.trim().toLowerCase(Locale.ROOT)) {
+            case "none":
+                return Compression.NONE;
+            case "deflate":
+                return Compression.DEFLATE;
+            default:
+                System.err.println("Warning: Unknown compression \"" + value + "\", using none");
+                return Compression.NONE;
+        }
+    }
+
+    // Compressing data that is already compressed costs a lot of cipher thread time to save nothing, so the
+    // file is only compressed if samples of it are far from random
+    private static Compression chooseCompression(FileChannel in, Compression compression) throws IOException {
+        long size = in.size();
+        if (compression == Compression.NONE || size == 0) {
+            return Compression.NONE;
+        }
+        long[] counts = new long[256];
+        long sampled = countBytes(in, 0, counts);
+        if (size > 2L * SAMPLE_SIZE) {
+            sampled += countBytes(in, size / 2, counts);
+        }
+
+        double entropy = 0;
+        for (long count : counts) {
+            if (count > 0) {
+                double p = (double) count / sampled;
+                entropy -= p * Math.log(p) / Math.log(2);
+            }
+        }
+        return entropy <= MAX_COMPRESSIBLE_ENTROPY ? compression : Compression.NONE;
+    }
+
+    private static int countBytes(FileChannel in, long position, long[] counts) throws IOException {
+        ByteBuffer sample = ByteBuffer.allocate((int) Math.min(SAMPLE_SIZE, in.size() - position));
+        AES.readFully(in, sample, position);
+        for (byte b : sample.array()) {
+            counts[b & 0xFF]++;
+        }
+        return sample.capacity();
+    }
+
+    // Chunks of files at least parallelThreshold bytes are spread over the shared fork-join pool. Smaller files
+    // are sealed on the calling thread so a batch of many small files isn't slowed down, with the reads and
+    // writes of files over one chunk overlapped with the cipher work
+    public static AES.ProcessingResult process(File original, File aegisFile, AES.Session session,
+                                               boolean isEncryption, long parallelThreshold,
+                                               Cancellation cancellation) {
+        return process(original, aegisFile, session, isEncryption, parallelThreshold, DEFAULT_COMPRESSION,
+                cancellation);
+    }
+
+    // The compression is only a request, new files are still stored as they are when they look incompressible
+    static AES.ProcessingResult process(File original, File aegisFile, AES.Session session, boolean isEncryption,
+                                        long parallelThreshold, Compression compression, Cancellation cancellation) {
+        try (FileChannel in = FileChannel.open(original.toPath(), StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(aegisFile.toPath(), StandardOpenOption.WRITE,
+                     StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+
+            Header header;
+            SecretKeySpec fileKey;
+            if (isEncryption) {
+                byte[] salt = new byte[SALT_SIZE];
+                byte[] nonce = new byte[NONCE_SIZE];
+                RANDOM.nextBytes(salt);
+                RANDOM.nextBytes(nonce);
+                KeyDerivation.Params kdf = session.batchParams();
+                fileKey = session.fileKey(kdf, salt);
+                header = Header.create(DEFAULT_ALGORITHM, chooseCompression(in, compression), CHUNK_SIZE, kdf, salt, nonce,
+                        in.size(), keyCheck(fileKey, salt, nonce));
+                AES.writeFully(out, ByteBuffer.wrap(header.raw), 0);
+            } else {
+                // Everything that can be checked without touching the chunks is checked before any output is written
+                ByteBuffer magic = ByteBuffer.allocate(MAGIC.length);
+                AES.readFully(in, magic, 0);
+                int headerSize = Arrays.equals(magic.array(), V1_MAGIC) ? V1_HEADER_SIZE
+                        : Arrays.equals(magic.array(), V2_MAGIC) ? V2_HEADER_SIZE : HEADER_SIZE;
+                if (in.size() < headerSize) {
+                    return new AES.ProcessingResult(false, AES.ProcessingError.DECRYPTION_ERROR, "Truncated file header");
+                }
+                ByteBuffer buffer = ByteBuffer.allocate(headerSize);
+                AES.readFully(in, buffer, 0);
+                buffer.flip();
+                header = Header.read(buffer);
+
+                if (header == null || !header.fits(in.size())) {
+                    return new AES.ProcessingResult(false, AES.ProcessingError.DECRYPTION_ERROR,
+                            "Invalid or truncated file header");
+                }
+                fileKey = session.fileKey(header.kdf, header.salt);
+                if (!MessageDigest.isEqual(header.keyCheck, keyCheck(fileKey, header.salt, header.nonce))) {
+                    return new AES.ProcessingResult(false, AES.ProcessingError.INVALID_KEY,
+                            "The password does not match this file");
+                }
+            }
+
+            Job job = new Job(in, out, header, fileKey, isEncryption, cancellation);
+            long chunks = header.chunkCount();
+            if (chunks > 1 && header.length >= parallelThreshold && !header.isCompressed()) {
+                Scheduler.cpu().invoke(new ChunkTask(job, 0, chunks));
+            } else if (chunks > 1) {
+                new Pipeline(job, chunks).run();
+            } else if (chunks == 1) {
+                job.processChunk(0);
+            }
+            if (!isEncryption && header.isCompressed() && job.readPosition != in.size()) {
+                return new AES.ProcessingResult(false, AES.ProcessingError.DECRYPTION_ERROR,
+                        "Unexpected data after the last chunk, the file is corrupted");
+            }
+            return new AES.ProcessingResult(true, AES.ProcessingError.NONE, "");
+
+        } catch (CancellationException e) {
+            return new AES.ProcessingResult(false, AES.ProcessingError.NONE, "Operation cancelled by user");
+        } catch (UncheckedIOException e) {
+            return new AES.ProcessingResult(false, AES.ProcessingError.FILE_ACCESS_ERROR, e.getMessage());
+        } catch (IOException e) {
+            return new AES.ProcessingResult(false, AES.ProcessingError.FILE_ACCESS_ERROR,
+                    "Could not open file: " + e.getMessage());
+        } catch (ChunkCipherException e) {
+            return new AES.ProcessingResult(false,
+                    isEncryption ? AES.ProcessingError.ENCRYPTION_ERROR : AES.ProcessingError.DECRYPTION_ERROR,
+                    e.getMessage());
+        } catch (GeneralSecurityException e) {
+            return new AES.ProcessingResult(false, AES.ProcessingError.INVALID_KEY, e.getMessage());
+        }
+    }
+
+    // Lets decryption reject a wrong password before any output is written, without revealing keystream
+    static byte[] keyCheck(SecretKeySpec fileKey, byte[] salt, byte[] nonce) throws GeneralSecurityException {
+        Mac mac = MACS.get();
+        mac.init(fileKey);
+        mac.update("aegis-key-check".getBytes(StandardCharsets.UTF_8));
+        mac.update(salt);
+        return Arrays.copyOf(mac.doFinal(nonce), KEY_CHECK_SIZE);
+    }
+
+    private static Cipher cipher(String transformation) {
+        try {
+            return Cipher.getInstance(transformation);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(transformation + " is not available", e);
+        }
+    }
+
+    private static class Header {
+        final Algorithm algorithm;
+        final Compression compression;
+        final int chunkSize;
+        final KeyDerivation.Params kdf;
+        final byte[] salt;
+        final byte[] nonce;
+        final long length;
+        final byte[] keyCheck;
+        // The header exactly as stored, authenticated by every chunk
+        final byte[] raw;
+
+        private Header(Algorithm algorithm, Compression compression, int chunkSize, KeyDerivation.Params kdf,
+                       byte[] salt, byte[] nonce, long length, byte[] keyCheck, byte[] raw) {
+            this.algorithm = algorithm;
+            this.compression = compression;
+            this.chunkSize = chunkSize;
+            this.kdf = kdf;
+            this.salt = salt;
+            this.nonce = nonce;
+            this.length = length;
+            this.keyCheck = keyCheck;
+            this.raw = raw;
+        }
+
+        static Header create(Algorithm algorithm, Compression compression, int chunkSize, KeyDerivation.Params kdf,
+                             byte[] salt, byte[] nonce, long length, byte[] keyCheck) {
+            ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE);
+            buffer.put(MAGIC).put(algorithm.id).put(compression.id).putInt(chunkSize);
+            kdf.write(buffer);
+            buffer.put(salt).put(nonce).putLong(length).put(keyCheck);
+            return new Header(algorithm, compression, chunkSize, kdf, salt, nonce, length, keyCheck, buffer.array());
+        }
+
+        // Reads any version. Returns null when the fields are out of range, which means the file is damaged
+        static Header read(ByteBuffer buffer) {
+            byte[] raw = new byte[buffer.remaining()];
+            buffer.duplicate().get(raw);
+
+            byte[] magic = new byte[MAGIC.length];
+            buffer.get(magic);
+            Algorithm algorithm = Algorithm.fromId(buffer.get());
+            Compression compression = Arrays.equals(magic, MAGIC) ? Compression.fromId(buffer.get()) : Compression.NONE;
+            int chunkSize = buffer.getInt();
+            KeyDerivation.Params kdf = Arrays.equals(magic, V1_MAGIC) ? KeyDerivation.SHA256 : KeyDerivation.Params.read(buffer);
+            byte[] salt = new byte[SALT_SIZE];
+            buffer.get(salt);
+            byte[] nonce = new byte[NONCE_SIZE];
+            buffer.get(nonce);
+            long length = buffer.getLong();
+            byte[] keyCheck = new byte[KEY_CHECK_SIZE];
+            buffer.get(keyCheck);
+
+            if (algorithm == null || compression == null || kdf == null || chunkSize <= 0
+                    || chunkSize > MAX_CHUNK_SIZE || chunkSize % BLOCK_SIZE != 0 || length < 0) {
+                return null;
+            }
+            Header header = new Header(algorithm, compression, chunkSize, kdf, salt, nonce, length, keyCheck, raw);
+            // Chunk indexes have to fit the 32 bit counter in the nonce
+            return header.chunkCount() <= 0xFFFFFFFFL ? header : null;
+        }
+
+        boolean isCompressed() {
+            return compression != Compression.NONE;
+        }
+
+        long chunkCount() {
+            return (length + chunkSize - 1) / chunkSize;
+        }
+
+        // Whether a file of this size can hold the chunks; compressed chunks only have a lower bound
+        boolean fits(long fileSize) {
+            if (isCompressed()) {
+                return fileSize >= raw.length + chunkCount() * (LENGTH_SIZE + FLAG_SIZE + TAG_SIZE);
+            }
+            return fileSize == raw.length + length + chunkCount() * TAG_SIZE;
+        }
+    }
+
+    // Everything needed to seal or open any chunk of one file
+    private static class Job {
+        private final FileChannel in;
+        private final FileChannel out;
+        private final Header header;
+        private final boolean isEncryption;
+        private final Cancellation cancellation;
+        private final byte[] aad;
+        private final SecretKeySpec cipherKey;
+        private final SecretKeySpec macKey;
+        // Compressed chunks are found one after another. Only ever touched by the thread that reads, or the one
+        // that writes, which is always in chunk order
+        long readPosition;
+        private long writePosition;
+        // Length prefixes of compressed chunks, reused by the same threads
+        private final ByteBuffer readLength = ByteBuffer.allocate(LENGTH_SIZE);
+        private final ByteBuffer writeLength = ByteBuffer.allocate(LENGTH_SIZE);
+
+        Job(FileChannel in, FileChannel out, Header header, SecretKeySpec fileKey, boolean isEncryption,
+            Cancellation cancellation) throws GeneralSecurityException {
+            this.in = in;
+            this.out = out;
+            this.header = header;
+            this.isEncryption = isEncryption;
+            this.cancellation = cancellation;
+            // Every chunk authenticates the whole header, so no header field can be changed unnoticed
+            this.aad = header.raw;
+            this.readPosition = header.raw.length;
+            this.writePosition = header.raw.length;
+
+            if (header.algorithm == Algorithm.GCM) {
+                this.cipherKey = fileKey;
+                this.macKey = null;
+            } else {
+                // CTR and HMAC each get their own key so neither can be used against the other
+                this.cipherKey = new SecretKeySpec(subkey(fileKey, "aegis-ctr-key"), "AES");
+                this.macKey = new SecretKeySpec(subkey(fileKey, "aegis-mac-key"), "HmacSHA256");
+            }
+        }
+
+        private static byte[] subkey(SecretKeySpec fileKey, String label) throws GeneralSecurityException {
+            Mac mac = MACS.get();
+            mac.init(fileKey);
+            return mac.doFinal(label.getBytes(StandardCharsets.UTF_8));
+        }
+
+        void processChunk(long index) {
+            checkCancelled();
+            byte[] buffer = BufferPool.array(bufferSize());
+            try {
+                int inputSize = read(index, buffer);
+                int outputSize = crypt(index, buffer, inputSize);
+                write(index, buffer, outputSize);
+            } finally {
+                BufferPool.release(buffer);
+            }
+        }
+
+        void checkCancelled() {
+            if (cancellation.isCancelled()) {
+                throw new CancellationException();
+            }
+        }
+
+        // Big enough for any chunk of this file, whether sealed or not
+        int bufferSize() {
+            return header.chunkSize + FLAG_SIZE + TAG_SIZE;
+        }
+
+        // The three steps of a chunk, which a Pipeline runs on different threads. Returns the bytes read
+        int read(long index, byte[] buffer) {
+            long start = System.nanoTime();
+            try {
+                int inputSize;
+                if (header.isCompressed() && !isEncryption) {
+                    long fileSize = in.size();
+                    if (readPosition + LENGTH_SIZE > fileSize) {
+                        throw new ChunkCipherException("Chunk " + index + " is missing, the file is truncated", null);
+                    }
+                    readLength.clear();
+                    AES.readFully(in, readLength, readPosition);
+                    inputSize = readLength.getInt(0);
+                    if (inputSize < FLAG_SIZE + TAG_SIZE || inputSize > bufferSize()) {
+                        throw new ChunkCipherException("Chunk " + index + " has an invalid length, the file is corrupted",
+                                null);
+                    }
+                    if (readPosition + LENGTH_SIZE + inputSize > fileSize) {
+                        throw new ChunkCipherException("Chunk " + index + " is cut short, the file is truncated", null);
+                    }
+                    AES.readFully(in, ByteBuffer.wrap(buffer, 0, inputSize), readPosition + LENGTH_SIZE);
+                    readPosition += LENGTH_SIZE + inputSize;
+                } else {
+                    int size = plaintextSize(index);
+                    inputSize = isEncryption ? size : size + TAG_SIZE;
+                    AES.readFully(in, ByteBuffer.wrap(buffer, 0, inputSize),
+                            isEncryption ? plaintextOffset(index) : sealedOffset(index));
+                }
+                Metrics.record(Metrics.Phase.READ, start, inputSize);
+                return inputSize;
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not read file: " + e.getMessage(), e);
+            }
+        }
+
+        // Seals or opens the chunk in the buffer in place, compressing or decompressing it for compressed
+        // files, and returns its new size
+        int crypt(long index, byte[] buffer, int inputSize) {
+            if (header.isCompressed() && isEncryption) {
+                inputSize = compress(buffer, inputSize);
+            }
+            long start = System.nanoTime();
+            int outputSize;
+            try {
+                outputSize = header.algorithm == Algorithm.GCM
+                        ? gcm(index, buffer, inputSize)
+                        : ctrHmac(index, buffer, isEncryption ? inputSize : inputSize - TAG_SIZE);
+                Metrics.record(Metrics.Phase.CIPHER, start, inputSize);
+            } catch (AEADBadTagException e) {
+                throw new ChunkCipherException("Chunk " + index + " failed authentication, the file is corrupted", e);
+            } catch (GeneralSecurityException e) {
+                throw new ChunkCipherException("Chunk " + index + ": " + e.getMessage(), e);
+            }
+            if (header.isCompressed() && !isEncryption) {
+                outputSize = decompress(index, buffer, outputSize);
+            }
+            return outputSize;
+        }
+
+        void write(long index, byte[] buffer, int outputSize) {
+            long start = System.nanoTime();
+            try {
+                if (header.isCompressed() && isEncryption) {
+                    writeLength.clear();
+                    writeLength.putInt(0, outputSize);
+                    AES.writeFully(out, writeLength, writePosition);
+                    AES.writeFully(out, ByteBuffer.wrap(buffer, 0, outputSize), writePosition + LENGTH_SIZE);
+                    writePosition += LENGTH_SIZE + outputSize;
+                } else {
+                    AES.writeFully(out, ByteBuffer.wrap(buffer, 0, outputSize),
+                            isEncryption ? sealedOffset(index) : plaintextOffset(index));
+                }
+                Metrics.record(Metrics.Phase.WRITE, start, outputSize);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not write output file: " + e.getMessage(), e);
+            }
+        }
+
+        private long plaintextOffset(long index) {
+            return index * header.chunkSize;
+        }
+
+        private long sealedOffset(long index) {
+            return header.raw.length + index * (header.chunkSize + (long) TAG_SIZE);
+        }
+
+        private int plaintextSize(long index) {
+            return (int) Math.min(header.chunkSize, header.length - plaintextOffset(index));
+        }
+
+        // Deflates the chunk behind a flag byte, or keeps it as it was when deflating doesn't make it smaller
+        private int compress(byte[] buffer, int size) {
+            long start = System.nanoTime();
+            byte[] scratch = BufferPool.array(header.chunkSize + FLAG_SIZE);
+            int outputSize;
+            try {
+                Deflater deflater = DEFLATERS.get();
+                deflater.reset();
+                deflater.setInput(buffer, 0, size);
+                deflater.finish();
+                int compressed = 0;
+                while (!deflater.finished() && compressed < size - FLAG_SIZE) {
+                    compressed += deflater.deflate(scratch, FLAG_SIZE + compressed, size - FLAG_SIZE - compressed);
+                }
+
+                if (deflater.finished()) {
+                    scratch[0] = DEFLATED;
+                    outputSize = FLAG_SIZE + compressed;
+                    System.arraycopy(scratch, 0, buffer, 0, outputSize);
+                } else {
+                    System.arraycopy(buffer, 0, buffer, FLAG_SIZE, size);
+                    buffer[0] = STORED;
+                    outputSize = FLAG_SIZE + size;
+                }
+            } finally {
+                BufferPool.release(scratch);
+            }
+            Metrics.record(Metrics.Phase.COMPRESS, start, size);
+            return outputSize;
+        }
+
+        // The other way round, checking the chunk comes out at the size the header says it has
+        private int decompress(long index, byte[] buffer, int size) {
+            long start = System.nanoTime();
+            int expected = plaintextSize(index);
+            if (buffer[0] == STORED && size - FLAG_SIZE == expected) {
+                System.arraycopy(buffer, FLAG_SIZE, buffer, 0, expected);
+            } else if (buffer[0] == DEFLATED) {
+                byte[] scratch = BufferPool.array(header.chunkSize + FLAG_SIZE);
+                try {
+                    Inflater inflater = INFLATERS.get();
+                    inflater.reset();
+                    inflater.setInput(buffer, FLAG_SIZE, size - FLAG_SIZE);
+                    int inflated = 0;
+                    // One byte of room past the expected size, so a chunk that is too long is noticed
+                    while (!inflater.finished() && inflated <= expected) {
+                        int count = inflater.inflate(scratch, inflated, expected + 1 - inflated);
+                        if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                            break;
+                        }
+                        inflated += count;
+                    }
+                    if (!inflater.finished() || inflated != expected) {
+                        throw new ChunkCipherException("Chunk " + index + " decompressed to the wrong size", null);
+                    }
+                    System.arraycopy(scratch, 0, buffer, 0, expected);
+                } catch (DataFormatException e) {
+                    throw new ChunkCipherException("Chunk " + index + " could not be decompressed: " + e.getMessage(), e);
+                } finally {
+                    BufferPool.release(scratch);
+                }
+            } else {
+                throw new ChunkCipherException("Chunk " + index + " is not in a known compression", null);
+            }
+            Metrics.record(Metrics.Phase.COMPRESS, start, expected);
+            return expected;
+        }
+
+        private int gcm(long index, byte[] buffer, int inputSize) throws GeneralSecurityException {
+            byte[] iv = ByteBuffer.allocate(NONCE_SIZE + 4).put(header.nonce).putInt((int) index).array();
+            Cipher cipher = GCM_CIPHERS.get();
+            cipher.init(isEncryption ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE, cipherKey,
+                    new GCMParameterSpec(TAG_SIZE * 8, iv));
+            cipher.updateAAD(aad);
+            return cipher.doFinal(buffer, 0, inputSize, buffer, 0);
+        }
+
+        // Encrypt-then-MAC, so a damaged chunk is rejected before it is decrypted
+        private int ctrHmac(long index, byte[] buffer, int size) throws GeneralSecurityException {
+            byte[] counter = ByteBuffer.allocate(BLOCK_SIZE).put(header.nonce).putInt((int) index).putInt(0).array();
+            Cipher cipher = CTR_CIPHERS.get();
+            cipher.init(Cipher.ENCRYPT_MODE, cipherKey, new IvParameterSpec(counter));
+
+            if (isEncryption) {
+                cipher.doFinal(buffer, 0, size, buffer, 0);
+                System.arraycopy(tag(index, buffer, size), 0, buffer, size, TAG_SIZE);
+                return size + TAG_SIZE;
+            }
+
+            byte[] expected = tag(index, buffer, size);
+            if (!MessageDigest.isEqual(expected, Arrays.copyOfRange(buffer, size, size + TAG_SIZE))) {
+                throw new AEADBadTagException("Tag mismatch");
+            }
+            cipher.doFinal(buffer, 0, size, buffer, 0);
+            return size;
+        }
+
+        private byte[] tag(long index, byte[] ciphertext, int size) throws GeneralSecurityException {
+            Mac mac = MACS.get();
+            mac.init(macKey);
+            mac.update(aad);
+            mac.update(ByteBuffer.allocate(8).putLong(index).array());
+            mac.update(ciphertext, 0, size);
+            return Arrays.copyOf(mac.doFinal(), TAG_SIZE);
+        }
+    }
+
+    // Splits a range of chunks in half until a single chunk is left
+    private static class ChunkTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Job job;
+        private final long first;
+        private final long last;
+
+        ChunkTask(Job job, long first, long last) {
+            this.job = job;
+            this.first = first;
+            this.last = last;
+        }
+
+        @Override
+        protected void compute() {
+            if (last - first > 1) {
+                long middle = first + (last - first) / 2;
+                invokeAll(new ChunkTask(job, first, middle), new ChunkTask(job, middle, last));
+                return;
+            }
+            if (last > first) {
+                job.processChunk(first);
+            }
+        }
+    }
+
+    // Runs the chunks of one file through three stages: a reader reads ahead, the calling thread seals or
+    // opens, and a writer writes behind. A fixed number of buffers circulates between the stages, so the
+    // queues are bounded by the buffers themselves and at most DEPTH chunks are in memory per file
+    private static class Pipeline {
+        private static final int DEPTH = 4;
+        // Handed down every queue when a stage fails, so no stage is left waiting on one that has stopped
+        private static final Slot POISON = new Slot(null);
+
+        private final Job job;
+        private final long chunks;
+        private final BlockingQueue<Slot> free = new LinkedBlockingQueue<>();
+        private final BlockingQueue<Slot> read = new LinkedBlockingQueue<>();
+        private final BlockingQueue<Slot> sealed = new LinkedBlockingQueue<>();
+        private final AtomicReference<RuntimeException> failure = new AtomicReference<>();
+        private final CountDownLatch stopped = new CountDownLatch(2);
+
+        private static final class Slot {
+            final byte[] buffer;
+            long index;
+            int size;
+
+            Slot(byte[] buffer) {
+                this.buffer = buffer;
+            }
+        }
+
+        Pipeline(Job job, long chunks) {
+            this.job = job;
+            this.chunks = chunks;
+        }
+
+        void run() {
+            // Buffers of finished pipelines go back to the pool for the next file instead of being allocated again
+            List<Slot> slots = new ArrayList<>(DEPTH);
+            for (int i = 0; i < DEPTH; i++) {
+                slots.add(new Slot(BufferPool.array(job.bufferSize())));
+            }
+            free.addAll(slots);
+
+            Scheduler.stages().execute(() -> stage(this::readAhead));
+            Scheduler.stages().execute(() -> stage(this::writeBehind));
+            try {
+                for (long index = 0; index < chunks; index++) {
+                    Slot slot = read.take();
+                    if (slot == POISON) {
+                        break;
+                    }
+                    job.checkCancelled();
+                    slot.size = job.crypt(slot.index, slot.buffer, slot.size);
+                    sealed.add(slot);
+                }
+            } catch (RuntimeException e) {
+                fail(e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                fail(new CancellationException());
+            }
+
+            // The stages finish their last chunk before the output channel may be closed
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    stopped.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+
+            for (Slot slot : slots) {
+                BufferPool.release(slot.buffer);
+            }
+            if (failure.get() != null) {
+                throw failure.get();
+            }
+        }
+
+        private void readAhead() throws InterruptedException {
+            for (long index = 0; index < chunks; index++) {
+                Slot slot = free.take();
+                if (slot == POISON) {
+                    return;
+                }
+                slot.index = index;
+                slot.size = job.read(index, slot.buffer);
+                read.add(slot);
+            }
+        }
+
+        private void writeBehind() throws InterruptedException {
+            for (long index = 0; index < chunks; index++) {
+                Slot slot = sealed.take();
+                if (slot == POISON) {
+                    return;
+                }
+                job.write(slot.index, slot.buffer, slot.size);
+                free.add(slot);
+            }
+        }
+
+        private interface Stage {
+            void run() throws InterruptedException;
+        }
+
+        private void stage(Stage stage) {
+            try {
+                stage.run();
+            } catch (RuntimeException e) {
+                fail(e);
+            } catch (InterruptedException e) {
+                fail(new CancellationException());
+            } finally {
+                stopped.countDown();
+            }
+        }
+
+        private void fail(RuntimeException e) {
+            failure.compareAndSet(null, e);
+            free.add(POISON);
+            read.add(POISON);
+            sealed.add(POISON);
+        }
+    }
+
+    private static class ChunkCipherException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        ChunkCipherException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+}
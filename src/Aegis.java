@@ -1,20 +1,27 @@
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.nio.file.attribute.DosFileAttributes;
-import java.security.MessageDigest;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.GeneralSecurityException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
 
+import javafx.animation.Animation;
+import javafx.animation.AnimationTimer;
+import javafx.animation.KeyFrame;
 import javafx.animation.PauseTransition;
+import javafx.animation.Timeline;
 import javafx.application.Application;
 
 import javafx.application.Platform;
-import javafx.beans.property.SimpleObjectProperty;
+import javafx.beans.property.BooleanProperty;
+import javafx.beans.property.LongProperty;
+import javafx.beans.property.SimpleBooleanProperty;
+import javafx.beans.property.SimpleLongProperty;
 import javafx.beans.property.SimpleStringProperty;
 import javafx.collections.FXCollections;
 import javafx.collections.ListChangeListener;
@@ -46,20 +53,67 @@ public class Aegis extends Application {
 
     private static class FileStatus {
         private final File file;
-        private boolean success;
-
+        private final String pathKey;
+        // Observable so the status cell redraws on its own when a file finishes
+        private final BooleanProperty success = new SimpleBooleanProperty(false);
+        // Read at import and again after processing or a refresh, so sorting and scrolling never touch the disk
+        private final LongProperty size = new SimpleLongProperty();
+        private final LongProperty lastModified = new SimpleLongProperty();
+
+        // Called on the import threads, so the metadata is read there instead of on the FX thread
         public FileStatus(File file) {
             this.file = file;
-            this.success = false;
+            this.pathKey = pathKey(file);
+            setMetadata(Metadata.read(file));
+        }
+
+        // Canonical path used to find duplicates, falls back to the absolute path if it can't be resolved
+        static String pathKey(File file) {
+            try {
+                return file.getCanonicalPath();
+            } catch (IOException e) {
+                return file.getAbsolutePath();
+            }
         }
 
         public File getFile() { return file; }
-        public boolean isSuccess() { return success; }
-        public void setSuccess(boolean success) { this.success = success; }
+        public String getPathKey() { return pathKey; }
+        public boolean isSuccess() { return success.get(); }
+        public void setSuccess(boolean success) { this.success.set(success); }
+        public BooleanProperty successProperty() { return success; }
+        public LongProperty sizeProperty() { return size; }
+        public LongProperty lastModifiedProperty() { return lastModified; }
+
+        public void setMetadata(Metadata metadata) {
+            size.set(metadata.size);
+            lastModified.set(metadata.lastModified);
+        }
 
         @Override
         public String toString() {
-            return "FileStatus{file=" + file.getName() + ", success=" + success + "}";
+            return "FileStatus{file=" + file.getName() + ", success=" + success.get() + "}";
+        }
+    }
+
+    // Size and modification time of a file from a single stat, zero for both if it can't be read like File does
+    private static class Metadata {
+        private static final Metadata MISSING = new Metadata(0, 0);
+
+        private final long size;
+        private final long lastModified;
+
+        private Metadata(long size, long lastModified) {
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        static Metadata read(File file) {
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+                return new Metadata(attributes.size(), attributes.lastModifiedTime().toMillis());
+            } catch (IOException e) {
+                return MISSING;
+            }
         }
     }
 
@@ -77,18 +131,53 @@ public class Aegis extends Application {
         public File getExistingFile() { return existingFile; }
     }
 
-    // Helper class to store the results of duplicate checking
-    private static class DuplicateCheckResult {
-        private final List<FileStatus> newFiles;
+    // Collects status changes from the workers and applies them on the FX thread at most once per frame,
+    // so a batch of many small files doesn't flood the event queue
+    private static class StatusUpdates extends AnimationTimer {
+        private final Map<FileStatus, Boolean> pending = new ConcurrentHashMap<>();
+        private final Map<FileStatus, Metadata> pendingMetadata = new ConcurrentHashMap<>();
+
+        public void post(FileStatus fileStatus, boolean success, Metadata metadata) {
+            pendingMetadata.put(fileStatus, metadata);
+            pending.put(fileStatus, success);
+        }
+
+        public void post(FileStatus fileStatus, Metadata metadata) {
+            pendingMetadata.put(fileStatus, metadata);
+        }
+
+        @Override
+        public void handle(long now) {
+            for (Map.Entry<FileStatus, Metadata> entry : pendingMetadata.entrySet()) {
+                if (pendingMetadata.remove(entry.getKey(), entry.getValue())) {
+                    entry.getKey().setMetadata(entry.getValue());
+                }
+            }
+            for (Map.Entry<FileStatus, Boolean> entry : pending.entrySet()) {
+                if (pending.remove(entry.getKey(), entry.getValue())) {
+                    entry.getKey().setSuccess(entry.getValue());
+                }
+            }
+        }
+
+        public void finish() {
+            stop();
+            handle(0);
+        }
+    }
+
+    // Helper class to store the results of an import
+    private static class ImportResult {
         private final List<DuplicateEntry> duplicates;
+        private final IOException error;
 
-        public DuplicateCheckResult(List<FileStatus> newFiles, List<DuplicateEntry> duplicates) {
-            this.newFiles = newFiles;
+        public ImportResult(List<DuplicateEntry> duplicates, IOException error) {
             this.duplicates = duplicates;
+            this.error = error;
         }
 
-        public List<FileStatus> getNewFiles() { return newFiles; }
         public List<DuplicateEntry> getDuplicates() { return duplicates; }
+        public IOException getError() { return error; }
     }
 
     private Stage stage;
@@ -97,12 +186,15 @@ public class Aegis extends Application {
 
     private TableView<FileStatus> fileTable = new TableView<>();
     private ArrayList<FileStatus> files = new ArrayList<>();
+    // Path index over files for constant time duplicate checks, read by import tasks in the background
+    private final Map<String, FileStatus> fileIndex = new ConcurrentHashMap<>();
     private Image appIcon;
 
     private MenuItem encryptItem;
     private MenuItem decryptItem;
     private MenuItem removeSelectedItem;
     private MenuItem clearItem;
+    private MenuItem refreshItem;
 
     @Override
     public void start(Stage stage) {
@@ -123,6 +215,8 @@ public class Aegis extends Application {
         encryptItem = new MenuItem("Encrypt All");
         decryptItem = new MenuItem("Decrypt All");
         clearItem = new MenuItem("Clear Item(s)");
+        refreshItem = new MenuItem("Refresh");
+        refreshItem.setAccelerator(new KeyCodeCombination(KeyCode.F5));
         MenuItem aboutItem = new MenuItem("About");
 
         // Initially disable items that require files
@@ -130,6 +224,7 @@ public class Aegis extends Application {
         decryptItem.setDisable(true);
         removeSelectedItem.setDisable(true);
         clearItem.setDisable(true);
+        refreshItem.setDisable(true);
 
         fileMenu.getItems().addAll(
                 importItem,
@@ -138,7 +233,8 @@ public class Aegis extends Application {
                 decryptItem,
                 actionSeparator,
                 removeSelectedItem,
-                clearItem
+                clearItem,
+                refreshItem
         );
 
         helpMenu.getItems().add(aboutItem);
@@ -177,6 +273,7 @@ public class Aegis extends Application {
         encryptItem.setOnAction(e -> encryptItemAction());
         decryptItem.setOnAction(e -> decryptItemAction());
         clearItem.setOnAction(e -> clearItemAction(root, doubleClickPane, scroll, null));
+        refreshItem.setOnAction(e -> refreshItemAction());
         aboutItem.setOnAction(e -> aboutItemAction());
 
         root.getChildren().addAll(doubleClickPane, menu);
@@ -200,6 +297,7 @@ public class Aegis extends Application {
             encryptItem.setDisable(!hasFiles);
             decryptItem.setDisable(!hasFiles);
             clearItem.setDisable(!hasFiles);
+            refreshItem.setDisable(!hasFiles);
             removeSelectedItem.setDisable(!hasFiles || fileTable.getSelectionModel().getSelectedItems().isEmpty());
         });
     }
@@ -247,51 +345,33 @@ public class Aegis extends Application {
                 file.canExecute() ? "Yes" : "No");
         grid.add(new Label(permissions), 1, 3);
 
-        // File type detection
-        String contentType;
-        try {
-            contentType = Files.probeContentType(file.toPath());
-            if (contentType == null) contentType = "Unknown";
-        } catch (IOException e) {
-            contentType = "Unknown";
-        }
+        // File type detection, which may have to read the file, so it is kept off the FX thread
         grid.add(new Label("Content Type:"), 0, 4);
-        grid.add(new Label(contentType), 1, 4);
+        Label contentTypeLabel = new Label("Detecting...");
+        grid.add(contentTypeLabel, 1, 4);
+        Scheduler.uiFeed(Scheduler.Priority.INTERACTIVE).execute(() -> {
+            String contentType;
+            try {
+                contentType = Files.probeContentType(file.toPath());
+                if (contentType == null) contentType = "Unknown";
+            } catch (IOException e) {
+                contentType = "Unknown";
+            }
+            String detected = contentType;
+            Platform.runLater(() -> contentTypeLabel.setText(detected));
+        });
 
         // Add checksum information
-        grid.add(new Label("MD5 Checksum:"), 0, 5);
+        ChecksumService.Algorithm algorithm = ChecksumService.DEFAULT_ALGORITHM;
+        grid.add(new Label(algorithm.getDisplayName() + " Checksum:"), 0, 5);
         Label checksumLabel = new Label("Calculating...");
         grid.add(checksumLabel, 1, 5);
 
-        // Calculate checksum in background
-        Task<String> checksumTask = new Task<String>() {
-            @Override
-            protected String call() throws Exception {
-                try (FileInputStream fis = new FileInputStream(file)) {
-                    MessageDigest md = MessageDigest.getInstance("MD5");
-                    byte[] buffer = new byte[8192];
-                    int length;
-                    while ((length = fis.read(buffer)) != -1) {
-                        md.update(buffer, 0, length);
-                    }
-                    byte[] bytes = md.digest();
-                    StringBuilder sb = new StringBuilder();
-                    for (byte b : bytes) {
-                        sb.append(String.format("%02x", b));
-                    }
-                    return sb.toString();
-                }
-            }
-        };
-
-        checksumTask.setOnSucceeded(e ->
-                checksumLabel.setText(checksumTask.getValue())
+        // Calculated on the shared checksum pool, reopening the preview of an unchanged file is instant
+        ChecksumService.SHARED.checksum(file, algorithm).whenComplete((checksum, error) ->
+                Platform.runLater(() -> checksumLabel.setText(error == null ? checksum : "Unavailable"))
         );
 
-        Thread checksumThread = new Thread(checksumTask);
-        checksumThread.setDaemon(true);
-        checksumThread.start();
-
         dialog.getDialogPane().setContent(grid);
         dialog.getDialogPane().getStylesheets().add(
                 getClass().getResource("stylesheet.css").toExternalForm());
@@ -369,9 +449,12 @@ public class Aegis extends Application {
 
         Optional<ButtonType> result = confirmation.showAndWait();
         if (result.isPresent() && result.get() == ButtonType.OK) {
-            List<FileStatus> itemsToRemove = new ArrayList<>(selectedItems);
+            Set<FileStatus> itemsToRemove = new HashSet<>(selectedItems);
             fileTable.getItems().removeAll(itemsToRemove);
             files.removeAll(itemsToRemove);
+            for (FileStatus status : itemsToRemove) {
+                fileIndex.remove(status.getPathKey(), status);
+            }
             fileTable.getSelectionModel().clearSelection();
 
             if (fileTable.getItems().isEmpty()) {
@@ -387,8 +470,8 @@ public class Aegis extends Application {
     }
 
     private void displayProgressDialog(boolean isEncryption, String password) {
-        Task copyWorker = processFile(password, isEncryption, System.currentTimeMillis());
-        Thread processThread = new Thread(copyWorker);
+        Metrics.Progress progress = new Metrics.Progress();
+        Task copyWorker = processFile(password, isEncryption, System.currentTimeMillis(), progress);
 
         ProgressDialog progressDialog = new ProgressDialog(copyWorker);
         progressDialog.getDialogPane().getStylesheets().clear();
@@ -404,7 +487,16 @@ public class Aegis extends Application {
         });
 
         progressDialog.setGraphic(null);
-        progressDialog.setHeaderText(null);
+        // Speed and time left, refreshed every second while the dialog is open
+        progressDialog.setHeaderText("Estimating time left...");
+        Timeline speedUpdates = new Timeline(new KeyFrame(Duration.seconds(1), event -> {
+            String speed = progress.describe();
+            if (speed != null) {
+                progressDialog.setHeaderText(speed);
+            }
+        }));
+        speedUpdates.setCycleCount(Animation.INDEFINITE);
+        progressDialog.setOnHidden(event -> speedUpdates.stop());
         progressDialog.setContentText("Processing files...");
 
         progressDialog.initStyle(StageStyle.DECORATED);
@@ -431,56 +523,109 @@ public class Aegis extends Application {
         Node closeButton = progressDialog.getDialogPane().lookupButton(ButtonType.CLOSE);
         closeButton.managedProperty().bind(closeButton.visibleProperty());
         closeButton.setVisible(false);
-        processThread.start();
+        Scheduler.io(Scheduler.Priority.BULK).execute(copyWorker);
+        speedUpdates.play();
         progressDialog.showAndWait();
     }
 
-    private Task<Void> processFile(String password, boolean isEncryption, long startTime) {
+    private Task<Void> processFile(String password, boolean isEncryption, long startTime, Metrics.Progress progress) {
+        // Snapshot the list so files imported while the batch runs are not picked up halfway
+        List<FileStatus> batch = new ArrayList<>(files);
+        StatusUpdates statusUpdates = new StatusUpdates();
+        statusUpdates.start();
+
         return new Task<Void>() {
             @Override
             protected Void call() {
+                AES.Session session;
                 try {
-                    String process = isEncryption ? "Encrypting " : "Decrypting ";
-                    // List to collect all errors
-                    List<String> errorMessages = new ArrayList<>();
-
-                    for (int i = 0; i < files.size(); i++) {
-                        FileStatus fileStatus = files.get(i);
-                        File original = fileStatus.getFile();
-                        File aegisFile = new File(original.getParent(), original.getName() + ".aegis");
-                        updateMessage(process + aegisFile.getName());
-
-                        AES.ProcessingResult result = AES.processFile(original, aegisFile, password, isEncryption, this);
-                        updateProgress(i, files.size() - 1);
-                        updateMessage("Secure deleting temporary file " + aegisFile.getName());
+                    session = new AES.Session(password, isEncryption);
+                } catch (GeneralSecurityException e) {
+                    showErrorDialog("Error", "Could not initialize encryption: " + e.getMessage());
+                    Platform.runLater(statusUpdates::finish);
+                    return null;
+                }
 
-                        if (!result.isSuccess()) {
-                            // Collect error message
+                try {
+                    List<File> originals = new ArrayList<>(batch.size());
+                    long[] sizes = new long[batch.size()];
+                    long totalBytes = 0;
+                    for (int i = 0; i < batch.size(); i++) {
+                        File file = batch.get(i).getFile();
+                        originals.add(file);
+                        sizes[i] = file.length();
+                        totalBytes += sizes[i];
+                    }
+                    progress.setTotalBytes(totalBytes);
+
+                    AES.ProcessingResult[] results = new BatchProcessor().run(originals, session, this::isCancelled,
+                            new BatchProcessor.Listener() {
+                                @Override
+                                public void fileStarted(int index, File file, String message) {
+                                    updateMessage(message);
+                                }
+
+                                @Override
+                                public void fileFinished(int index, File file, AES.ProcessingResult result,
+                                                         int completed, int total) {
+                                    updateProgress(completed, total);
+                                    // Nothing of these was read, or not all of it
+                                    if (!result.isSuccess() || result.getDetails().equals(BatchProcessor.FINISHED_EARLIER)) {
+                                        progress.skipped(sizes[index]);
+                                    }
+                                    // The file was usually replaced, so its size and time are read again here
+                                    // rather than by the table
+                                    statusUpdates.post(batch.get(index), result.isSuccess(), Metadata.read(file));
+                                }
+                            });
+
+                    // Lists to collect all errors and skipped files, in the same order as the table
+                    List<String> errorMessages = new ArrayList<>();
+                    List<String> skippedMessages = new ArrayList<>();
+                    for (int i = 0; i < results.length; i++) {
+                        AES.ProcessingResult result = results[i];
+                        if (result == null || result.isSuccess()) {
+                            continue;
+                        }
+                        if (result.isSkipped()) {
+                            skippedMessages.add(String.format("• %s: %s",
+                                    originals.get(i).getName(),
+                                    result.getError().getMessage()));
+                        } else {
                             errorMessages.add(String.format("• %s: %s - %s",
-                                    original.getName(),
+                                    originals.get(i).getName(),
                                     result.getError().getMessage(),
                                     result.getDetails()));
                         }
-
-                        AES.secureDelete(original, aegisFile, result.isSuccess());
-                        final boolean success = result.isSuccess();
-                        Platform.runLater(() -> {
-                            fileStatus.setSuccess(success);
-                            fileTable.refresh();
-                        });
                     }
 
-                    // Show single error dialog if there were any errors
-                    if (!errorMessages.isEmpty()) {
+                    // Show single dialog if there were any errors or skipped files, errors first
+                    if (!errorMessages.isEmpty() || !skippedMessages.isEmpty()) {
+                        List<String> lines = new ArrayList<>(errorMessages);
+                        if (!errorMessages.isEmpty() && !skippedMessages.isEmpty()) {
+                            lines.add("");
+                        }
+                        lines.addAll(skippedMessages);
+
                         Platform.runLater(() -> {
-                            Alert alert = new Alert(Alert.AlertType.ERROR);
-                            alert.setTitle("Processing Errors");
-                            alert.setHeaderText(String.format("Failed to process %d file%s:",
-                                    errorMessages.size(),
-                                    errorMessages.size() == 1 ? "" : "s"));
+                            Alert alert;
+                            if (errorMessages.isEmpty()) {
+                                alert = new Alert(Alert.AlertType.INFORMATION);
+                                alert.setTitle("Files Skipped");
+                                alert.setHeaderText(String.format("Skipped %d file%s:",
+                                        skippedMessages.size(),
+                                        skippedMessages.size() == 1 ? "" : "s"));
+                            } else {
+                                alert = new Alert(Alert.AlertType.ERROR);
+                                alert.setTitle("Processing Errors");
+                                alert.setHeaderText(String.format("Failed to process %d file%s%s:",
+                                        errorMessages.size(),
+                                        errorMessages.size() == 1 ? "" : "s",
+                                        skippedMessages.isEmpty() ? "" : ", skipped " + skippedMessages.size()));
+                            }
 
                             // Create scrollable text area for errors
-                            TextArea textArea = new TextArea(String.join("\n", errorMessages));
+                            TextArea textArea = new TextArea(String.join("\n", lines));
                             textArea.setEditable(false);
                             textArea.setWrapText(true);
                             textArea.setMaxHeight(200);  // Limit height
@@ -505,19 +650,14 @@ public class Aegis extends Application {
                     }
                 } catch (Exception e) {
                     e.printStackTrace();
+                } finally {
+                    Platform.runLater(statusUpdates::finish);
                 }
                 return null;
             }
         };
     }
 
-    private List<File> getAllFilesFromDirectory(File directory) throws IOException {
-        return Files.walk(Paths.get(directory.toURI()))
-                .filter(Files::isRegularFile)
-                .map(Path::toFile)
-                .collect(Collectors.toList());
-    }
-
     private void importItemAction(Pane root, Pane doubleClickPane, ScrollPane scroll, VBox v) {
         FileChooser fileChooser = new FileChooser();
         fileChooser.setTitle("Import Files");
@@ -552,11 +692,7 @@ public class Aegis extends Application {
             } else if (dialogButton == selectFolderType) {
                 File selectedDir = dirChooser.showDialog(stage);
                 if (selectedDir != null) {
-                    try {
-                        return getAllFilesFromDirectory(selectedDir);
-                    } catch (IOException e) {
-                        showErrorDialog("Error", "Failed to process folder: " + e.getMessage());
-                    }
+                    return Collections.singletonList(selectedDir);
                 }
             }
             return null;
@@ -566,42 +702,16 @@ public class Aegis extends Application {
         Optional<List<File>> result = dialog.showAndWait();
         result.ifPresent(selectedFiles -> {
             if (selectedFiles != null && !selectedFiles.isEmpty()) {
-                addFilePanesToDisplay(selectedFiles, root, scroll, doubleClickPane, v);
+                addFilePanesToDisplay(selectedFiles, file -> true, root, scroll, doubleClickPane, v);
             }
         });
     }
 
     // Add method to filter files
-    private boolean isValidFile(File file) {
-        // Skip null, hidden, or system files
-        if (file == null || file.isHidden()) {
-            return false;
-        }
-
-        try {
-            DosFileAttributes attrs = Files.readAttributes(file.toPath(), DosFileAttributes.class);
-            if (attrs.isHidden() || attrs.isSystem()) {
-                return false;
-            }
-        } catch (IOException e) {
-            // If we can't read attributes, skip the file
-            return false;
-        }
-
-        // Skip temporary files and specific extensions
-        String name = file.getName().toLowerCase();
-        if (name.startsWith("~") || name.startsWith(".")) {
-            return false;
-        }
-
-        return !name.endsWith(".tmp") &&
-                !name.endsWith(".aegis") &&  // Skip already processed files
-                !name.endsWith(".lnk");      // Skip shortcuts
-    }
-
     private void clearItemAction(Pane root, Pane doubleClickPane, ScrollPane scroll, VBox v) {
         if (root.getChildren().contains(scroll)) {
             files.clear();
+            fileIndex.clear();
             fileTable.getItems().clear();
             fileTable.getSelectionModel().clearSelection();
 
@@ -613,6 +723,22 @@ public class Aegis extends Application {
         }
     }
 
+    // Reads the size and time of every listed file again, for files changed outside the app since they were imported
+    private void refreshItemAction() {
+        List<FileStatus> listed = new ArrayList<>(files);
+        StatusUpdates statusUpdates = new StatusUpdates();
+        statusUpdates.start();
+        Scheduler.io(Scheduler.Priority.BULK).execute(() -> {
+            try {
+                for (FileStatus status : listed) {
+                    statusUpdates.post(status, Metadata.read(status.getFile()));
+                }
+            } finally {
+                Platform.runLater(statusUpdates::finish);
+            }
+        });
+    }
+
     private void aboutItemAction() {
         Alert dialog = new Alert(AlertType.INFORMATION);
         dialog.setTitle("About Aegis");
@@ -711,42 +837,8 @@ public class Aegis extends Application {
 
             if (db.hasFiles()) {
                 success = true;
-                try {
-                    // Pre-process files to get total count
-                    List<File> toProcess = new ArrayList<>();
-                    for (File file : db.getFiles()) {
-                        if (file.isDirectory()) {
-                            List<File> dirFiles = Files.walk(file.toPath())
-                                    .filter(Files::isRegularFile)
-                                    .filter(p -> isValidFile(p.toFile()))
-                                    .map(Path::toFile)
-                                    .collect(Collectors.toList());
-                            toProcess.addAll(dirFiles);
-                        } else if (isValidFile(file)) {
-                            toProcess.add(file);
-                        }
-                    }
-
-                    if (!toProcess.isEmpty()) {
-                        // Use existing addFilePanesToDisplay which already handles duplicates
-                        addFilePanesToDisplay(toProcess, root, scroll, doubleClickPane, null);
-                    } else {
-                        Platform.runLater(() -> {
-                            Alert alert = new Alert(Alert.AlertType.WARNING);
-                            setDialogIcon(alert);
-                            alert.setTitle("No Valid Files");
-                            alert.setHeaderText(null);
-                            alert.setContentText("No valid files found to import.");
-                            alert.getDialogPane().getStylesheets().add(
-                                    getClass().getResource("stylesheet.css").toExternalForm());
-                            alert.showAndWait();
-                        });
-                    }
-                } catch (IOException e) {
-                    Platform.runLater(() ->
-                            showErrorDialog("Error", "Failed to process dropped files: " + e.getMessage())
-                    );
-                }
+                // Folders are walked in the background, which also handles duplicates
+                addFilePanesToDisplay(new ArrayList<>(db.getFiles()), BatchProcessor::isValidFile, root, scroll, doubleClickPane, null);
             }
 
             event.setDropCompleted(success);
@@ -784,48 +876,37 @@ public class Aegis extends Application {
         });
 
         // Size column (20%)
-        TableColumn<FileStatus, Long> sizeColumn = new TableColumn<>("Size");
-        sizeColumn.setCellValueFactory(data -> {
-            if (data.getValue() != null && data.getValue().getFile() != null) {
-                return new SimpleObjectProperty<>(data.getValue().getFile().length());
-            }
-            return new SimpleObjectProperty<>(0L);
-        });
-        sizeColumn.setCellFactory(column -> new TableCell<FileStatus, Long>() {
+        TableColumn<FileStatus, Number> sizeColumn = new TableColumn<>("Size");
+        sizeColumn.setCellValueFactory(data -> data.getValue().sizeProperty());
+        sizeColumn.setCellFactory(column -> new TableCell<FileStatus, Number>() {
             @Override
-            protected void updateItem(Long size, boolean empty) {
+            protected void updateItem(Number size, boolean empty) {
                 super.updateItem(size, empty);
                 setStyle("-fx-font-size: 15px; -fx-alignment: CENTER-RIGHT;");
-                setText(empty || size == null ? null : formatFileSize(size));
+                setText(empty || size == null ? null : formatFileSize(size.longValue()));
             }
         });
 
         // Date column (25%)
-        TableColumn<FileStatus, Long> dateColumn = new TableColumn<>("Last Modified");
-        dateColumn.setCellValueFactory(data -> {
-            if (data.getValue() != null && data.getValue().getFile() != null) {
-                return new SimpleObjectProperty<>(data.getValue().getFile().lastModified());
-            }
-            return new SimpleObjectProperty<>(0L);
-        });
-        dateColumn.setCellFactory(column -> new TableCell<FileStatus, Long>() {
+        TableColumn<FileStatus, Number> dateColumn = new TableColumn<>("Last Modified");
+        dateColumn.setCellValueFactory(data -> data.getValue().lastModifiedProperty());
+        dateColumn.setCellFactory(column -> new TableCell<FileStatus, Number>() {
             @Override
-            protected void updateItem(Long timestamp, boolean empty) {
+            protected void updateItem(Number timestamp, boolean empty) {
                 super.updateItem(timestamp, empty);
                 setStyle("-fx-font-size: 15px; -fx-alignment: CENTER;");
                 if (empty || timestamp == null) {
                     setText(null);
                 } else {
                     setText(new java.text.SimpleDateFormat("MM/dd/yyyy HH:mm")
-                            .format(new java.util.Date(timestamp)));
+                            .format(new java.util.Date(timestamp.longValue())));
                 }
             }
         });
 
         // Status column (10%)
         TableColumn<FileStatus, Boolean> statusColumn = new TableColumn<>("Status");
-        statusColumn.setCellValueFactory(data ->
-                new SimpleObjectProperty<>(data.getValue() != null && data.getValue().isSuccess()));
+        statusColumn.setCellValueFactory(data -> data.getValue().successProperty());
         statusColumn.setCellFactory(column -> new TableCell<FileStatus, Boolean>() {
             @Override
             protected void updateItem(Boolean success, boolean empty) {
@@ -911,8 +992,8 @@ public class Aegis extends Application {
         fileTable.getStyleClass().add("styled-table");
     }
 
-    // Improved thread-safe version of addFilePanesToDisplay
-    private void addFilePanesToDisplay(List<File> importedFiles, Pane root, ScrollPane scroll, Pane doubleClickPane, VBox v) {
+    // Walks the imported files and folders in the background and streams what it finds into the table
+    private void addFilePanesToDisplay(List<File> importedFiles, Predicate<File> filter, Pane root, ScrollPane scroll, Pane doubleClickPane, VBox v) {
         // Initial UI setup
         Platform.runLater(() -> {
             if (root.getChildren().contains(doubleClickPane)) {
@@ -924,32 +1005,56 @@ public class Aegis extends Application {
             }
         });
 
-        Task<DuplicateCheckResult> loadFilesTask = new Task<DuplicateCheckResult>() {
+        // Files found by the walker wait here for the FX thread. A drain is only posted when none is pending,
+        // so the table is updated as often as the FX thread keeps up rather than once per batch
+        Queue<FileStatus> found = new ConcurrentLinkedQueue<>();
+        AtomicBoolean drainPosted = new AtomicBoolean(false);
+        List<DuplicateEntry> lateDuplicates = new ArrayList<>();
+        AtomicInteger added = new AtomicInteger();
+        Runnable drain = () -> {
+            drainPosted.set(false);
+            List<FileStatus> batch = new ArrayList<>();
+            for (FileStatus status; (status = found.poll()) != null; ) {
+                batch.add(status);
+            }
+            added.addAndGet(addToTable(batch, lateDuplicates));
+        };
+
+        Task<ImportResult> loadFilesTask = new Task<ImportResult>() {
             @Override
-            protected DuplicateCheckResult call() throws Exception {
-                List<FileStatus> newFiles = new ArrayList<>();
-                List<DuplicateEntry> duplicates = new ArrayList<>();
-                int totalFiles = importedFiles.size();
-
-                for (int i = 0; i < importedFiles.size(); i++) {
-                    File file = importedFiles.get(i);
-
-                    // Check for duplicates
-                    Optional<FileStatus> existingFile = files.stream()
-                            .filter(status -> status.getFile().getAbsolutePath().equals(file.getAbsolutePath()))
-                            .findFirst();
-
-                    if (existingFile.isPresent()) {
-                        duplicates.add(new DuplicateEntry(file, existingFile.get().getFile()));
-                    } else {
+            protected ImportResult call() {
+                List<DuplicateEntry> duplicates = Collections.synchronizedList(new ArrayList<>());
+                // Also catches the same file showing up twice within this import
+                Map<String, FileStatus> imported = new ConcurrentHashMap<>();
+
+                DirectoryWalker walker = new DirectoryWalker(filter, batch -> {
+                    for (File file : batch) {
                         FileStatus status = new FileStatus(file);
-                        newFiles.add(status);
+
+                        // Check for duplicates
+                        FileStatus existingFile = fileIndex.get(status.getPathKey());
+                        if (existingFile == null) {
+                            existingFile = imported.putIfAbsent(status.getPathKey(), status);
+                        }
+
+                        if (existingFile != null) {
+                            duplicates.add(new DuplicateEntry(file, existingFile.getFile()));
+                        } else {
+                            found.add(status);
+                        }
                     }
 
-                    updateProgress(i + 1, totalFiles);
-                }
+                    if (drainPosted.compareAndSet(false, true)) {
+                        Platform.runLater(drain);
+                    }
+                });
 
-                return new DuplicateCheckResult(newFiles, duplicates);
+                try {
+                    walker.walk(importedFiles);
+                    return new ImportResult(duplicates, null);
+                } catch (IOException e) {
+                    return new ImportResult(duplicates, e);
+                }
             }
         };
 
@@ -966,24 +1071,34 @@ public class Aegis extends Application {
 
         loadFilesTask.setOnSucceeded(event -> {
             Platform.runLater(() -> {
-                DuplicateCheckResult result = loadFilesTask.getValue();
+                ImportResult result = loadFilesTask.getValue();
+
+                // Pick up whatever the walker found after the last drain
+                drain.run();
+                root.getChildren().remove(progress);
 
-                if (!result.getDuplicates().isEmpty()) {
-                    showDuplicatesDialog(result.getDuplicates());
+                List<DuplicateEntry> duplicates = new ArrayList<>(result.getDuplicates());
+                duplicates.addAll(lateDuplicates);
+                if (!duplicates.isEmpty()) {
+                    showDuplicatesDialog(duplicates);
                 }
 
-                List<FileStatus> newFiles = result.getNewFiles();
-                if (!newFiles.isEmpty()) {
-                    files.addAll(newFiles);
-                    fileTable.setItems(FXCollections.observableArrayList(files));
-                    if (!fileTable.getSortOrder().isEmpty()) {
-                        TableColumn<FileStatus, ?> sortColumn = fileTable.getSortOrder().get(0);
-                        fileTable.getSortOrder().clear();
-                        fileTable.getSortOrder().add(sortColumn);
-                    }
+                if (result.getError() != null) {
+                    showErrorDialog("Error", "Failed to read some folders: " + result.getError().getMessage());
+                } else if (added.get() == 0 && duplicates.isEmpty()) {
+                    Alert alert = new Alert(Alert.AlertType.WARNING);
+                    setDialogIcon(alert);
+                    alert.setTitle("No Valid Files");
+                    alert.setHeaderText(null);
+                    alert.setContentText("No valid files found to import.");
+                    alert.getDialogPane().getStylesheets().add(
+                            getClass().getResource("stylesheet.css").toExternalForm());
+                    alert.showAndWait();
                 }
 
-                root.getChildren().remove(progress);
+                if (files.isEmpty()) {
+                    clearItemAction(root, doubleClickPane, scroll, v);
+                }
                 updateMenuStates();
             });
         });
@@ -998,10 +1113,32 @@ public class Aegis extends Application {
             });
         });
 
-        // Start the loading task
-        Thread thread = new Thread(loadFilesTask);
-        thread.setDaemon(true);
-        thread.start();
+        // Start the loading task, previews opened meanwhile still go first
+        Scheduler.io(Scheduler.Priority.BULK).execute(loadFilesTask);
+    }
+
+    // Adds a batch of imported files on the FX thread and returns how many were new. Registering in the index
+    // here also catches files added by another import that was running at the same time
+    private int addToTable(List<FileStatus> batch, List<DuplicateEntry> duplicates) {
+        List<FileStatus> newFiles = new ArrayList<>(batch.size());
+        for (FileStatus status : batch) {
+            FileStatus existingFile = fileIndex.putIfAbsent(status.getPathKey(), status);
+            if (existingFile == null) {
+                newFiles.add(status);
+            } else {
+                duplicates.add(new DuplicateEntry(status.getFile(), existingFile.getFile()));
+            }
+        }
+
+        if (!newFiles.isEmpty()) {
+            files.addAll(newFiles);
+            fileTable.getItems().addAll(newFiles);
+            if (!fileTable.getSortOrder().isEmpty()) {
+                fileTable.sort();
+            }
+            updateMenuStates();
+        }
+        return newFiles.size();
     }
 
     // Helper method to format file sizes
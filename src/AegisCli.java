@@ -0,0 +1,557 @@
+import java.io.BufferedReader;
+import java.io.Console;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.crypto.AEADBadTagException;
+
+/**
+ * Command line entry point for headless machines. Runs the same engine as the desktop app but never
+ * touches JavaFX, so it starts without loading the toolkit and works without a display.
+ *
+ * Prints one line per finished file to stdout and failures to stderr. Exits with 0 when every file
+ * succeeded or was skipped, 1 when any file failed and 2 on bad usage.
+ */
+public class AegisCli {
+    private static final int EXIT_OK = 0;
+    private static final int EXIT_FAILED = 1;
+    private static final int EXIT_USAGE = 2;
+
+    private static final String USAGE = String.join(System.lineSeparator(),
+            "Usage: java -cp Aegis.jar AegisCli <encrypt|decrypt> [options] <file or folder>...",
+            "       java -cp Aegis.jar AegisCli pack [options] <archive> <file or folder>...",
+            "       java -cp Aegis.jar AegisCli list [options] <archive>",
+            "       java -cp Aegis.jar AegisCli unpack [options] <archive> [name]...",
+            "",
+            "pack stores the files in one new encrypted archive and then wipes them, which is much faster than",
+            "encrypting folders of many small files one by one. unpack extracts every file or only the names given",
+            "and keeps the archive.",
+            "",
+            "Options:",
+            "  -j, --parallelism <n>     number of files processed at the same time",
+            "  -C, --directory <dir>     folder unpack extracts into (default: the folder of the archive)",
+            "  --password-env <name>     read the password from an environment variable",
+            "  --password-file <file>    read the password from the first line of a file",
+            "  -q, --quiet               only print failures and the summary",
+            "  --summary <file>          write where an encrypt or decrypt spent its time as JSON, - for stdout",
+            "",
+            "Without a password option the password is read from the console.");
+
+    public static void main(String[] args) {
+        System.exit(run(args));
+    }
+
+    static int run(String[] args) {
+        if (args.length == 0 || args[0].equals("-h") || args[0].equals("--help")) {
+            System.out.println(USAGE);
+            return args.length == 0 ? EXIT_USAGE : EXIT_OK;
+        }
+
+        String command = args[0];
+        if (!Arrays.asList("encrypt", "decrypt", "pack", "list", "unpack").contains(command)) {
+            return usageError("Unknown command \"" + command + "\"");
+        }
+
+        int parallelism = BatchProcessor.DEFAULT_PARALLELISM;
+        String passwordEnv = null;
+        File passwordFile = null;
+        File directory = null;
+        String summary = null;
+        boolean quiet = false;
+        List<String> operands = new ArrayList<>();
+
+        for (int i = 1; i < args.length; i++) {
+            String arg = args[i];
+            switch (arg) {
+                case "-j":
+                case "--parallelism":
+                    if (++i == args.length) {
+                        return usageError(arg + " needs a value");
+                    }
+                    try {
+                        parallelism = Integer.parseInt(args[i]);
+                    } catch (NumberFormatException e) {
+                        return usageError("Invalid parallelism \"" + args[i] + "\"");
+                    }
+                    break;
+                case "-C":
+                case "--directory":
+                    if (++i == args.length) {
+                        return usageError(arg + " needs a value");
+                    }
+                    directory = new File(args[i]);
+                    break;
+                case "--password-env":
+                    if (++i == args.length) {
+                        return usageError(arg + " needs a value");
+                    }
+                    passwordEnv = args[i];
+                    break;
+                case "--password-file":
+                    if (++i == args.length) {
+                        return usageError(arg + " needs a value");
+                    }
+                    passwordFile = new File(args[i]);
+                    break;
+                case "--summary":
+                    if (++i == args.length) {
+                        return usageError(arg + " needs a value");
+                    }
+                    summary = args[i];
+                    break;
+                case "-q":
+                case "--quiet":
+                    quiet = true;
+                    break;
+                default:
+                    if (arg.startsWith("-")) {
+                        return usageError("Unknown option \"" + arg + "\"");
+                    }
+                    operands.add(arg);
+            }
+        }
+
+        boolean isArchive = !command.equals("encrypt") && !command.equals("decrypt");
+        if (operands.isEmpty()) {
+            return usageError(isArchive ? "No archive given" : "No files given");
+        }
+        if (command.equals("pack") && operands.size() < 2) {
+            return usageError("No files given");
+        }
+        if (command.equals("list") && operands.size() > 1) {
+            return usageError("list takes a single archive");
+        }
+
+        String password;
+        try {
+            password = readPassword(passwordEnv, passwordFile);
+        } catch (IOException e) {
+            System.err.println("Could not read password: " + e.getMessage());
+            return EXIT_USAGE;
+        }
+        if (password == null || password.isEmpty()) {
+            System.err.println("A password is required");
+            return EXIT_USAGE;
+        }
+
+        boolean isEncryption = command.equals("encrypt") || command.equals("pack");
+        AES.Session session;
+        try {
+            session = new AES.Session(password, isEncryption);
+        } catch (GeneralSecurityException e) {
+            System.err.println("Could not initialize encryption: " + e.getMessage());
+            return EXIT_FAILED;
+        }
+
+        File archive = new File(operands.get(0));
+        List<String> rest = operands.subList(1, operands.size());
+        switch (command) {
+            case "pack":
+                return pack(archive, toFiles(rest), session, quiet);
+            case "list":
+                return list(archive, session);
+            case "unpack":
+                return unpack(archive, rest, directory != null ? directory : archive.getAbsoluteFile().getParentFile(),
+                        session, quiet);
+            default:
+                return process(toFiles(operands), session, parallelism, summary, quiet);
+        }
+    }
+
+    private static List<File> toFiles(List<String> paths) {
+        List<File> files = new ArrayList<>(paths.size());
+        for (String path : paths) {
+            files.add(new File(path));
+        }
+        return files;
+    }
+
+    private static int process(List<File> roots, AES.Session session, int parallelism, String summary,
+                               boolean quiet) {
+        boolean isEncryption = session.isEncryption();
+        // Missing roots are reported but don't stop the rest from being processed
+        boolean failed = false;
+        for (File root : roots) {
+            if (!root.exists()) {
+                System.err.println("Not found: " + root);
+                failed = true;
+            }
+        }
+
+        // The walker hands over batches from several threads, the order within the batch doesn't matter
+        Queue<File> found = new ConcurrentLinkedQueue<>();
+        try {
+            new DirectoryWalker(BatchProcessor::isValidFile, found::addAll).walk(roots);
+        } catch (IOException e) {
+            System.err.println("Some folders could not be read: " + e.getMessage());
+            failed = true;
+        }
+        List<File> files = new ArrayList<>(found);
+        if (files.isEmpty()) {
+            System.err.println("No files to process");
+            return failed ? EXIT_FAILED : EXIT_OK;
+        }
+
+        Interruption interruption = new Interruption();
+        // Released only once the counts and the summary are out, so a Ctrl+C waits for the cancelled run's report
+        try {
+            long startTime = System.nanoTime();
+            BatchProcessor processor = new BatchProcessor(parallelism, BatchProcessor.DEFAULT_WIPE_PARALLELISM);
+            AES.ProcessingResult[] results;
+            try {
+                results = processor.run(files, session, interruption, new ProgressPrinter(System.out, System.err, quiet));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return EXIT_FAILED;
+            }
+
+            int succeeded = 0;
+            int skipped = 0;
+            int errors = 0;
+            for (AES.ProcessingResult result : results) {
+                if (result == null) {
+                    continue;
+                }
+                if (result.isSuccess()) {
+                    succeeded++;
+                } else if (result.isSkipped()) {
+                    skipped++;
+                } else {
+                    errors++;
+                }
+            }
+            int notStarted = results.length - succeeded - skipped - errors;
+
+            double seconds = (System.nanoTime() - startTime) / 1e9;
+            System.out.println(String.format("%s %d file%s, %d skipped, %d failed%s in %.1f s",
+                    isEncryption ? "Encrypted" : "Decrypted",
+                    succeeded, succeeded == 1 ? "" : "s", skipped, errors,
+                    notStarted > 0 ? ", " + notStarted + " not started after cancel" : "",
+                    seconds));
+            if (!quiet) {
+                System.out.println("Time spent: " + processor.getMetrics().describe());
+            }
+            if (summary != null && !writeSummary(summary, processor.getMetrics())) {
+                failed = true;
+            }
+
+            return failed || errors > 0 || notStarted > 0 ? EXIT_FAILED : EXIT_OK;
+        } finally {
+            interruption.finished();
+        }
+    }
+
+    // Machine readable timings of the batch, for scripts that track where production batches spend their time
+    private static boolean writeSummary(String summary, Metrics.Snapshot metrics) {
+        if (summary.equals("-")) {
+            System.out.println(metrics.toJson());
+            return true;
+        }
+        try {
+            Files.write(new File(summary).toPath(), (metrics.toJson() + System.lineSeparator())
+                    .getBytes(StandardCharsets.UTF_8));
+            return true;
+        } catch (IOException e) {
+            System.err.println("Could not write summary: " + e.getMessage());
+            return false;
+        }
+    }
+
+    // Each file is stored under its path relative to the folder holding the root it was found under,
+    // so packing "photos" stores "photos/2019/a.jpg"
+    private static int pack(File archive, List<File> roots, AES.Session session, boolean quiet) {
+        if (archive.exists()) {
+            System.err.println("Archive already exists: " + archive);
+            return EXIT_FAILED;
+        }
+
+        boolean failed = false;
+        Map<String, File> byName = new TreeMap<>();
+        for (File root : roots) {
+            if (!root.exists()) {
+                System.err.println("Not found: " + root);
+                failed = true;
+                continue;
+            }
+            Queue<File> found = new ConcurrentLinkedQueue<>();
+            try {
+                new DirectoryWalker(BatchProcessor::isValidFile, found::addAll).walk(Collections.singletonList(root));
+            } catch (IOException e) {
+                System.err.println("Some folders could not be read: " + e.getMessage());
+                failed = true;
+            }
+
+            Path base = root.getAbsoluteFile().toPath().normalize().getParent();
+            for (File file : found) {
+                Path path = file.getAbsoluteFile().toPath().normalize();
+                String name = (base == null ? path : base.relativize(path)).toString().replace(File.separatorChar, '/');
+                if (!ArchiveCipher.isValidName(name)) {
+                    System.err.println("Path too long for an archive: " + file);
+                    failed = true;
+                } else if (byName.putIfAbsent(name, file) != null) {
+                    System.err.println("Two files would be stored as " + name + ", pack them separately");
+                    return EXIT_FAILED;
+                }
+            }
+        }
+        if (failed) {
+            // Packing only part of what was asked for would wipe some originals and leave others in place
+            return EXIT_FAILED;
+        }
+        if (byName.isEmpty()) {
+            System.err.println("No files to pack");
+            return EXIT_OK;
+        }
+
+        List<String> names = new ArrayList<>(byName.keySet());
+        List<File> files = new ArrayList<>(byName.values());
+        Interruption interruption = new Interruption();
+        long startTime = System.nanoTime();
+        try {
+            AES.ProcessingResult result = ArchiveCipher.pack(files, names, archive, session, interruption);
+            if (!result.isSuccess()) {
+                System.err.println("Could not pack " + archive + ": " + result.getDetails());
+                return EXIT_FAILED;
+            }
+
+            // The archive is on disk, the originals can go. Each wipe is a handful of small writes, so
+            // several run at once
+            ProgressPrinter printer = new ProgressPrinter(System.out, System.err, quiet);
+            AtomicInteger completed = new AtomicInteger();
+            AtomicInteger wipeErrors = new AtomicInteger();
+            ExecutorService wipers = Scheduler.batch("aegis-wipe", BatchProcessor.DEFAULT_WIPE_PARALLELISM);
+            for (int i = 0; i < files.size(); i++) {
+                final int index = i;
+                wipers.execute(() -> {
+                    File file = files.get(index);
+                    boolean wiped = AES.wipeOriginal(file) && file.delete();
+                    if (!wiped) {
+                        wipeErrors.incrementAndGet();
+                    }
+                    printer.fileFinished(index, file, wiped
+                            ? new AES.ProcessingResult(true, AES.ProcessingError.NONE, "")
+                            : new AES.ProcessingResult(false, AES.ProcessingError.FILE_ACCESS_ERROR,
+                                    "Packed, but the original could not be wiped"),
+                            completed.incrementAndGet(), files.size());
+                });
+            }
+            wipers.shutdown();
+            try {
+                wipers.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return EXIT_FAILED;
+            }
+
+            double seconds = (System.nanoTime() - startTime) / 1e9;
+            System.out.println(String.format("Packed %d file%s into %s, %d could not be wiped in %.1f s",
+                    files.size(), files.size() == 1 ? "" : "s", archive, wipeErrors.get(), seconds));
+            return wipeErrors.get() > 0 ? EXIT_FAILED : EXIT_OK;
+        } finally {
+            interruption.finished();
+        }
+    }
+
+    private static int list(File archive, AES.Session session) {
+        try (ArchiveCipher.Reader reader = ArchiveCipher.open(archive, session)) {
+            for (ArchiveCipher.Entry entry : reader.entries()) {
+                System.out.println(String.format("%12d  %tF %<tT  %s",
+                        entry.getSize(), new Date(entry.getLastModified()), entry.getName()));
+            }
+            return EXIT_OK;
+        } catch (IOException | GeneralSecurityException e) {
+            System.err.println("Could not read " + archive + ": " + describe(e));
+            return EXIT_FAILED;
+        }
+    }
+
+    private static int unpack(File archive, List<String> names, File directory, AES.Session session, boolean quiet) {
+        try (ArchiveCipher.Reader reader = ArchiveCipher.open(archive, session)) {
+            List<ArchiveCipher.Entry> entries = new ArrayList<>();
+            if (names.isEmpty()) {
+                entries.addAll(reader.entries());
+            } else {
+                Map<String, ArchiveCipher.Entry> byName = new HashMap<>();
+                for (ArchiveCipher.Entry entry : reader.entries()) {
+                    byName.put(entry.getName(), entry);
+                }
+                for (String name : names) {
+                    ArchiveCipher.Entry entry = byName.get(name);
+                    if (entry == null) {
+                        System.err.println("Not in the archive: " + name);
+                        return EXIT_FAILED;
+                    }
+                    entries.add(entry);
+                }
+            }
+
+            Interruption interruption = new Interruption();
+            ProgressPrinter printer = new ProgressPrinter(System.out, System.err, quiet);
+            Path base = directory.getAbsoluteFile().toPath().normalize();
+            long startTime = System.nanoTime();
+            int errors = 0;
+            int completed = 0;
+            try {
+                for (int i = 0; i < entries.size() && !interruption.isCancelled(); i++) {
+                    ArchiveCipher.Entry entry = entries.get(i);
+                    Path target = base.resolve(entry.getName()).normalize();
+                    AES.ProcessingResult result;
+                    // A name like "../x" must not write outside the target folder
+                    if (!target.startsWith(base) || target.equals(base)) {
+                        result = new AES.ProcessingResult(false, AES.ProcessingError.DECRYPTION_ERROR,
+                                "Unsafe name in archive");
+                    } else {
+                        try {
+                            Files.createDirectories(target.getParent());
+                            reader.extract(entry, target.toFile());
+                            result = new AES.ProcessingResult(true, AES.ProcessingError.NONE, "");
+                        } catch (IOException e) {
+                            result = new AES.ProcessingResult(false, AES.ProcessingError.FILE_ACCESS_ERROR, describe(e));
+                        } catch (GeneralSecurityException e) {
+                            result = new AES.ProcessingResult(false, AES.ProcessingError.DECRYPTION_ERROR, describe(e));
+                        }
+                    }
+                    if (!result.isSuccess()) {
+                        errors++;
+                    }
+                    printer.fileFinished(i, target.toFile(), result, ++completed, entries.size());
+                }
+
+                double seconds = (System.nanoTime() - startTime) / 1e9;
+                int notStarted = entries.size() - completed;
+                System.out.println(String.format("Extracted %d file%s, %d failed%s in %.1f s",
+                        completed - errors, completed - errors == 1 ? "" : "s", errors,
+                        notStarted > 0 ? ", " + notStarted + " not started after cancel" : "", seconds));
+                return errors > 0 || notStarted > 0 ? EXIT_FAILED : EXIT_OK;
+            } finally {
+                // After the report, so a Ctrl+C waits for it
+                interruption.finished();
+            }
+        } catch (IOException | GeneralSecurityException e) {
+            System.err.println("Could not read " + archive + ": " + describe(e));
+            return EXIT_FAILED;
+        }
+    }
+
+    private static String describe(Exception e) {
+        if (e instanceof AEADBadTagException) {
+            return "The archive is corrupted";
+        }
+        if (e instanceof FileAlreadyExistsException) {
+            return "Already exists";
+        }
+        return e.getMessage();
+    }
+
+    // Ctrl+C lets the files already being processed finish, so none are left half written
+    private static final class Interruption implements Cancellation {
+        private final AtomicBoolean cancelled = new AtomicBoolean();
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        Interruption() {
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                cancelled.set(true);
+                try {
+                    done.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }));
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return cancelled.get();
+        }
+
+        void finished() {
+            done.countDown();
+        }
+    }
+
+    private static int usageError(String message) {
+        System.err.println(message);
+        System.err.println(USAGE);
+        return EXIT_USAGE;
+    }
+
+    // Never taken from the arguments, where it would show up in the process list and shell history
+    private static String readPassword(String passwordEnv, File passwordFile) throws IOException {
+        if (passwordEnv != null) {
+            String password = System.getenv(passwordEnv);
+            if (password == null) {
+                throw new IOException("Environment variable " + passwordEnv + " is not set");
+            }
+            return password;
+        }
+
+        if (passwordFile != null) {
+            try (BufferedReader reader = Files.newBufferedReader(passwordFile.toPath(), StandardCharsets.UTF_8)) {
+                String line = reader.readLine();
+                return line == null ? "" : line;
+            }
+        }
+
+        Console console = System.console();
+        if (console == null) {
+            throw new IOException("No console available, use --password-env or --password-file");
+        }
+        char[] password = console.readPassword("Password: ");
+        return password == null ? null : new String(password);
+    }
+
+    // Streams progress as files finish. Lines are printed whole so output from several workers never
+    // interleaves, which keeps the log easy to grep from cron
+    private static class ProgressPrinter implements BatchProcessor.Listener {
+        private final PrintStream out;
+        private final PrintStream err;
+        private final boolean quiet;
+
+        ProgressPrinter(PrintStream out, PrintStream err, boolean quiet) {
+            this.out = out;
+            this.err = err;
+            this.quiet = quiet;
+        }
+
+        @Override
+        public void fileStarted(int index, File file, String message) {
+        }
+
+        @Override
+        public void fileFinished(int index, File file, AES.ProcessingResult result, int completed, int total) {
+            String progress = "[" + completed + "/" + total + "] ";
+            if (result.isSuccess()) {
+                if (!quiet) {
+                    out.println(progress + "OK   " + file.getPath());
+                }
+            } else if (result.isSkipped()) {
+                if (!quiet) {
+                    out.println(progress + "SKIP " + file.getPath() + ": " + result.getError().getMessage());
+                }
+            } else {
+                err.println(progress + "FAIL " + file.getPath() + ": "
+                        + result.getError().getMessage() + " - " + result.getDetails());
+            }
+        }
+    }
+}
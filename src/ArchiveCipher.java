@@ -0,0 +1,362 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Packs many files into one encrypted archive, so a folder of tiny files costs one output file instead of
+ * a temporary file, rename and delete for each of them. Every file is stored as one or more AES-256-GCM
+ * segments, followed by a sealed index of names and offsets, so a single file can be extracted without
+ * reading anything else.
+ *
+ * Layout: magic (8) | kdf params (21) | salt (16) | nonce (8) | key check (16) |
+ *         segments, each ciphertext (up to segment size) | tag (16) |
+ *         index segment | index offset (8) | index segment number (4) | index length (4)
+ *
+ * Segment n is sealed with the nonce followed by n, and authenticates the header. The trailer is not
+ * encrypted, but any change to it points the reader at the wrong bytes or segment number and fails the
+ * index authentication.
+ *
+ * Index: entry count (4), then per entry name length (2) | name | size (8) | last modified (8) | offset (8) |
+ *        first segment (4). Names use '/' between folders.
+ */
+public class ArchiveCipher {
+    private static final byte[] MAGIC = FileFormat.ARCHIVE.magic();
+    private static final int TAG_SIZE = AeadCipher.TAG_SIZE;
+    private static final int HEADER_SIZE = MAGIC.length + KeyDerivation.PARAMS_SIZE + AeadCipher.SALT_SIZE
+            + AeadCipher.NONCE_SIZE + AeadCipher.KEY_CHECK_SIZE;
+    private static final int TRAILER_SIZE = 8 + 4 + 4;
+    static final int SEGMENT_SIZE = AeadCipher.CHUNK_SIZE;
+    // Guards the index allocation against a damaged trailer
+    private static final int MAX_INDEX_SIZE = 1024 * 1024 * 1024;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    public static final class Entry {
+        private final String name;
+        private final long size;
+        private final long lastModified;
+        private final long offset;
+        private final int firstSegment;
+
+        Entry(String name, long size, long lastModified, long offset, int firstSegment) {
+            this.name = name;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.offset = offset;
+            this.firstSegment = firstSegment;
+        }
+
+        public String getName() { return name; }
+        public long getSize() { return size; }
+        public long getLastModified() { return lastModified; }
+    }
+
+    // Writes files into a new archive, each stored under the name at the same position. The archive is
+    // synced to disk before this returns, so the originals can be wiped as soon as it succeeds
+    public static AES.ProcessingResult pack(List<File> files, List<String> names, File archive, AES.Session session,
+                                            Cancellation cancellation) {
+        FileChannel outputChannel;
+        try {
+            outputChannel = FileChannel.open(archive.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW);
+        } catch (IOException e) {
+            return new AES.ProcessingResult(false, AES.ProcessingError.FILE_ACCESS_ERROR,
+                    "Could not create archive: " + e.getMessage());
+        }
+
+        AES.ProcessingResult result;
+        try (FileChannel out = outputChannel) {
+            result = write(files, names, out, session, cancellation);
+            if (result.isSuccess()) {
+                out.force(true);
+            }
+        } catch (IOException e) {
+            result = new AES.ProcessingResult(false, AES.ProcessingError.FILE_ACCESS_ERROR,
+                    "Could not write archive: " + e.getMessage());
+        }
+
+        if (!result.isSuccess() && !archive.delete()) {
+            System.err.println("Warning: Could not delete incomplete archive " + archive.getName());
+        }
+        return result;
+    }
+
+    private static AES.ProcessingResult write(List<File> files, List<String> names, FileChannel out,
+                                              AES.Session session, Cancellation cancellation) throws IOException {
+        Segments segments;
+        try {
+            byte[] salt = new byte[AeadCipher.SALT_SIZE];
+            byte[] nonce = new byte[AeadCipher.NONCE_SIZE];
+            RANDOM.nextBytes(salt);
+            RANDOM.nextBytes(nonce);
+            KeyDerivation.Params kdf = session.batchParams();
+            SecretKeySpec fileKey = session.fileKey(kdf, salt);
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.put(MAGIC);
+            kdf.write(header);
+            header.put(salt).put(nonce).put(AeadCipher.keyCheck(fileKey, salt, nonce));
+            segments = new Segments(fileKey, nonce, header.array(), true);
+        } catch (GeneralSecurityException e) {
+            return new AES.ProcessingResult(false, AES.ProcessingError.INVALID_KEY, e.getMessage());
+        }
+
+        long position = HEADER_SIZE;
+        AES.writeFully(out, ByteBuffer.wrap(segments.aad), 0);
+
+        List<Entry> entries = new ArrayList<>(files.size());
+        byte[] buffer = BufferPool.array(SEGMENT_SIZE + TAG_SIZE);
+        try {
+            for (int i = 0; i < files.size(); i++) {
+                if (cancellation.isCancelled()) {
+                    return new AES.ProcessingResult(false, AES.ProcessingError.NONE, "Operation cancelled by user");
+                }
+
+                File file = files.get(i);
+                long offset = position;
+                int firstSegment = segments.next;
+                long size = 0;
+                try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                    // Read to the end rather than trusting the size, which may change while the archive is written
+                    int read;
+                    while ((read = readSegment(in, buffer)) > 0) {
+                        int sealed = segments.seal(buffer, read);
+                        AES.writeFully(out, ByteBuffer.wrap(buffer, 0, sealed), position);
+                        position += sealed;
+                        size += read;
+                    }
+                } catch (IOException e) {
+                    return new AES.ProcessingResult(false, AES.ProcessingError.FILE_ACCESS_ERROR,
+                            "Could not read " + file + ": " + e.getMessage());
+                } catch (GeneralSecurityException e) {
+                    return new AES.ProcessingResult(false, AES.ProcessingError.ENCRYPTION_ERROR, e.getMessage());
+                }
+                entries.add(new Entry(names.get(i), size, file.lastModified(), offset, firstSegment));
+            }
+        } finally {
+            BufferPool.release(buffer);
+        }
+
+        byte[] index = writeIndex(entries);
+        int indexSegment = segments.next;
+        byte[] sealedIndex = new byte[index.length + TAG_SIZE];
+        System.arraycopy(index, 0, sealedIndex, 0, index.length);
+        try {
+            segments.seal(sealedIndex, index.length);
+        } catch (GeneralSecurityException e) {
+            return new AES.ProcessingResult(false, AES.ProcessingError.ENCRYPTION_ERROR, e.getMessage());
+        }
+        AES.writeFully(out, ByteBuffer.wrap(sealedIndex), position);
+
+        ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+        trailer.putLong(position).putInt(indexSegment).putInt(index.length).flip();
+        AES.writeFully(out, trailer, position + sealedIndex.length);
+        return new AES.ProcessingResult(true, AES.ProcessingError.NONE, "");
+    }
+
+    // Fills the buffer up to a segment, returns 0 at the end of the file
+    private static int readSegment(FileChannel in, byte[] buffer) throws IOException {
+        ByteBuffer target = ByteBuffer.wrap(buffer, 0, SEGMENT_SIZE);
+        while (target.hasRemaining()) {
+            if (in.read(target) < 0) {
+                break;
+            }
+        }
+        return target.position();
+    }
+
+    private static byte[] writeIndex(List<Entry> entries) {
+        List<byte[]> encodedNames = new ArrayList<>(entries.size());
+        int size = 4;
+        for (Entry entry : entries) {
+            byte[] name = entry.name.getBytes(StandardCharsets.UTF_8);
+            encodedNames.add(name);
+            size += 2 + name.length + 8 + 8 + 8 + 4;
+        }
+
+        ByteBuffer index = ByteBuffer.allocate(size);
+        index.putInt(entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            Entry entry = entries.get(i);
+            byte[] name = encodedNames.get(i);
+            index.putShort((short) name.length).put(name)
+                    .putLong(entry.size).putLong(entry.lastModified).putLong(entry.offset).putInt(entry.firstSegment);
+        }
+        return index.array();
+    }
+
+    // Longest name an entry can have, the index stores the length in two bytes
+    static boolean isValidName(String name) {
+        return name.getBytes(StandardCharsets.UTF_8).length <= 0xFFFF;
+    }
+
+    // An archive opened for reading. The index is read and authenticated up front, entries are then
+    // extracted on their own by seeking straight to their segments
+    public static final class Reader implements Closeable {
+        private final FileChannel in;
+        private final Segments segments;
+        private final List<Entry> entries;
+
+        private Reader(FileChannel in, Segments segments, List<Entry> entries) {
+            this.in = in;
+            this.segments = segments;
+            this.entries = entries;
+        }
+
+        public List<Entry> entries() {
+            return entries;
+        }
+
+        // Writes one entry to a new file, which must not exist yet
+        public void extract(Entry entry, File target) throws IOException, GeneralSecurityException {
+            FileChannel outputChannel = FileChannel.open(target.toPath(), StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE_NEW);
+            // Only a file created here is removed on failure, never one that was already there
+            byte[] buffer = BufferPool.array(SEGMENT_SIZE + TAG_SIZE);
+            try (FileChannel out = outputChannel) {
+                long position = entry.offset;
+                long remaining = entry.size;
+                int segment = entry.firstSegment;
+                long written = 0;
+                while (remaining > 0) {
+                    int size = (int) Math.min(SEGMENT_SIZE, remaining);
+                    AES.readFully(in, ByteBuffer.wrap(buffer, 0, size + TAG_SIZE), position);
+                    int opened = segments.open(segment, buffer, size + TAG_SIZE);
+                    AES.writeFully(out, ByteBuffer.wrap(buffer, 0, opened), written);
+                    position += size + TAG_SIZE;
+                    written += opened;
+                    remaining -= size;
+                    segment++;
+                }
+            } catch (IOException | GeneralSecurityException e) {
+                Files.deleteIfExists(target.toPath());
+                throw e;
+            } finally {
+                BufferPool.release(buffer);
+            }
+            if (!target.setLastModified(entry.lastModified)) {
+                System.err.println("Warning: Could not set the time of " + target);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    // Throws InvalidKeyException for a wrong password and AEADBadTagException when the archive was changed
+    public static Reader open(File archive, AES.Session session) throws IOException, GeneralSecurityException {
+        FileChannel in = FileChannel.open(archive.toPath(), StandardOpenOption.READ);
+        try {
+            long length = in.size();
+            if (length < HEADER_SIZE + TAG_SIZE + TRAILER_SIZE) {
+                throw new IOException("Truncated archive");
+            }
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            AES.readFully(in, header, 0);
+            header.flip();
+            byte[] magic = new byte[MAGIC.length];
+            header.get(magic);
+            KeyDerivation.Params kdf = KeyDerivation.Params.read(header);
+            byte[] salt = new byte[AeadCipher.SALT_SIZE];
+            byte[] nonce = new byte[AeadCipher.NONCE_SIZE];
+            byte[] keyCheck = new byte[AeadCipher.KEY_CHECK_SIZE];
+            header.get(salt).get(nonce).get(keyCheck);
+            if (!MessageDigest.isEqual(magic, MAGIC) || kdf == null) {
+                throw new IOException("Not an archive or a damaged one");
+            }
+
+            SecretKeySpec fileKey = session.fileKey(kdf, salt);
+            if (!MessageDigest.isEqual(keyCheck, AeadCipher.keyCheck(fileKey, salt, nonce))) {
+                throw new InvalidKeyException("The password does not match this archive");
+            }
+            Segments segments = new Segments(fileKey, nonce, header.array(), false);
+
+            ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+            AES.readFully(in, trailer, length - TRAILER_SIZE);
+            trailer.flip();
+            long indexOffset = trailer.getLong();
+            int indexSegment = trailer.getInt();
+            int indexLength = trailer.getInt();
+            if (indexLength < 4 || indexLength > MAX_INDEX_SIZE
+                    || indexOffset != length - TRAILER_SIZE - TAG_SIZE - indexLength) {
+                throw new AEADBadTagException("Archive trailer was changed");
+            }
+
+            byte[] index = new byte[indexLength + TAG_SIZE];
+            AES.readFully(in, ByteBuffer.wrap(index), indexOffset);
+            segments.open(indexSegment, index, index.length);
+            return new Reader(in, segments, readIndex(ByteBuffer.wrap(index, 0, indexLength)));
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    private static List<Entry> readIndex(ByteBuffer index) {
+        int count = index.getInt();
+        List<Entry> entries = new ArrayList<>(Math.min(count, index.remaining() / 30));
+        for (int i = 0; i < count; i++) {
+            byte[] name = new byte[index.getShort() & 0xFFFF];
+            index.get(name);
+            entries.add(new Entry(new String(name, StandardCharsets.UTF_8),
+                    index.getLong(), index.getLong(), index.getLong(), index.getInt()));
+        }
+        return Collections.unmodifiableList(entries);
+    }
+
+    // Seals and opens the numbered segments of one archive
+    private static final class Segments {
+        private final SecretKeySpec key;
+        private final byte[] nonce;
+        private final byte[] aad;
+        private final boolean isEncryption;
+        private final Cipher cipher;
+        private int next;
+
+        Segments(SecretKeySpec key, byte[] nonce, byte[] aad, boolean isEncryption) throws GeneralSecurityException {
+            this.key = key;
+            this.nonce = nonce;
+            this.aad = aad;
+            this.isEncryption = isEncryption;
+            this.cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        }
+
+        // Seals the next segment in place, the buffer needs room for the tag
+        int seal(byte[] buffer, int size) throws GeneralSecurityException {
+            init(Cipher.ENCRYPT_MODE, next++);
+            return cipher.doFinal(buffer, 0, size, buffer, 0);
+        }
+
+        int open(int segment, byte[] buffer, int size) throws GeneralSecurityException {
+            init(Cipher.DECRYPT_MODE, segment);
+            return cipher.doFinal(buffer, 0, size, buffer, 0);
+        }
+
+        private void init(int mode, int segment) throws GeneralSecurityException {
+            if ((mode == Cipher.ENCRYPT_MODE) != isEncryption) {
+                throw new IllegalStateException("Archive is open for " + (isEncryption ? "writing" : "reading"));
+            }
+            byte[] iv = ByteBuffer.allocate(AeadCipher.NONCE_SIZE + 4).put(nonce).putInt(segment).array();
+            cipher.init(mode, key, new GCMParameterSpec(TAG_SIZE * 8, iv));
+            cipher.updateAAD(aad);
+        }
+    }
+}
@@ -0,0 +1,372 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only record of how far each file of a batch got, so a batch that was cancelled or killed halfway
+ * picks up where it stopped. A file goes through
+ *   PENDING   the temporary output is being written, the original is untouched
+ *   PROCESSED the output is complete and on disk, the original is about to be wiped
+ *   WIPED     the original has been overwritten and is about to be replaced by the output
+ *   DONE      the output was renamed into place (or the file was processed in place or skipped)
+ *
+ * Journals live in one directory, by default ~/.aegis/journal. Each batch writes its own and holds a lock on
+ * it; journals that nobody holds were left by a run that died, and the next batch takes them over: files
+ * caught between PROCESSED and DONE are finished, and DONE files that haven't changed since are not redone.
+ * A batch that runs to the end without being cancelled deletes its journal.
+ */
+class BatchJournal implements Closeable {
+    enum State {
+        PENDING(1), PROCESSED(2), WIPED(3), DONE(4);
+
+        final byte id;
+
+        State(int id) {
+            this.id = (byte) id;
+        }
+
+        static State fromId(byte id) {
+            for (State state : values()) {
+                if (state.id == id) {
+                    return state;
+                }
+            }
+            return null;
+        }
+    }
+
+    private static final byte[] MAGIC = {'A', 'E', 'G', 'I', 'S', 'B', 'J', '1'};
+    private static final String EXTENSION = ".journal";
+
+    // Record layout: state (1) | file id (4) | payload length (4) | payload | CRC of everything before it (4)
+    // The PENDING record introduces a file and carries its mode (1) and path, DONE carries the size (8) and
+    // last modified time (8) of the finished file, the other states have no payload
+    private static final int RECORD_OVERHEAD = 1 + 4 + 4 + 4;
+
+    // Last known state of one file
+    static final class Entry {
+        final File file;
+        final boolean isEncryption;
+        final State state;
+        final long size;
+        final long lastModified;
+
+        Entry(File file, boolean isEncryption, State state, long size, long lastModified) {
+            this.file = file;
+            this.isEncryption = isEncryption;
+            this.state = state;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        // Still caught between writing its output and replacing the original
+        boolean isInFlight() {
+            return state == State.PROCESSED || state == State.WIPED;
+        }
+
+        private int priority() {
+            return isInFlight() ? 2 : state == State.DONE ? 1 : 0;
+        }
+
+        // Finished in this mode and not modified since, so there is nothing left to do
+        boolean isDone(boolean isEncryption) {
+            if (state != State.DONE || this.isEncryption != isEncryption) {
+                return false;
+            }
+            try {
+                BasicFileAttributes attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+                return attrs.size() == size && attrs.lastModifiedTime().toMillis() == lastModified;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+    }
+
+    private final File journalFile;
+    private final FileChannel channel;
+    private final FileLock lock;
+    private final Map<String, Entry> previous;
+    private final Map<String, Integer> ids = new HashMap<>();
+    private int nextId;
+
+    // Group commit: a sync covers every record written before it started, so workers that need their
+    // records on disk at the same time share one sync instead of queueing up for one each
+    private final Object syncLock = new Object();
+    private long written;
+    private long synced;
+
+    private BatchJournal(File journalFile, FileChannel channel, FileLock lock, Map<String, Entry> previous) {
+        this.journalFile = journalFile;
+        this.channel = channel;
+        this.lock = lock;
+        this.previous = previous;
+    }
+
+    // Starts the journal of a new batch and takes over the journals of runs that died
+    static BatchJournal open(File directory) throws IOException {
+        Files.createDirectories(directory.toPath());
+        File journalFile = File.createTempFile("batch-", EXTENSION, directory);
+        FileChannel channel = FileChannel.open(journalFile.toPath(), StandardOpenOption.WRITE);
+        BatchJournal journal;
+        try {
+            FileLock lock = channel.lock();
+            channel.write(ByteBuffer.wrap(MAGIC));
+            journal = new BatchJournal(journalFile, channel, lock, new LinkedHashMap<>());
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            Files.deleteIfExists(journalFile.toPath());
+            throw e;
+        }
+
+        File[] abandoned = directory.listFiles((dir, name) -> name.endsWith(EXTENSION));
+        for (File file : abandoned == null ? new File[0] : abandoned) {
+            if (!file.equals(journalFile)) {
+                journal.takeOver(file);
+            }
+        }
+        return journal;
+    }
+
+    // Last state of a file in the journals that were taken over, or null if it wasn't in any
+    synchronized Entry previous(File file) {
+        return previous.get(file.getAbsolutePath());
+    }
+
+    // Files of earlier runs that were left halfway, whether or not they are part of this batch
+    synchronized List<Entry> inFlight() {
+        List<Entry> entries = new ArrayList<>();
+        for (Entry entry : previous.values()) {
+            if (entry.isInFlight()) {
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+
+    // Must be called before the temporary output of the file is created
+    void pending(File file, boolean isEncryption) throws IOException {
+        String path = file.getAbsolutePath();
+        byte[] encoded = path.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = ByteBuffer.allocate(1 + encoded.length);
+        payload.put((byte) (isEncryption ? 1 : 0)).put(encoded).flip();
+        synchronized (this) {
+            int id = nextId++;
+            ids.put(path, id);
+            append(State.PENDING, id, payload);
+        }
+    }
+
+    // The output has to be on disk before the original is wiped, so this waits for the record to be synced
+    void processed(File file) throws IOException {
+        sync(record(file, State.PROCESSED, ByteBuffer.allocate(0)));
+    }
+
+    void wiped(File file) throws IOException {
+        record(file, State.WIPED, ByteBuffer.allocate(0));
+    }
+
+    // Stores the size and time of the finished file, so a later run can tell whether it was touched since
+    void done(File file, boolean isEncryption) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        ByteBuffer payload = ByteBuffer.allocate(16);
+        payload.putLong(attrs.size()).putLong(attrs.lastModifiedTime().toMillis()).flip();
+        synchronized (this) {
+            String path = file.getAbsolutePath();
+            if (!ids.containsKey(path)) {
+                pending(file, isEncryption);
+            }
+            record(file, State.DONE, payload);
+            // Files finished from a taken over journal are then skipped if they are also part of this batch
+            if (previous.containsKey(path)) {
+                previous.put(path, new Entry(file, isEncryption, State.DONE, attrs.size(),
+                        attrs.lastModifiedTime().toMillis()));
+            }
+        }
+    }
+
+    // Deletes the journal when nothing is left to resume, otherwise keeps it for the next run
+    void close(boolean isComplete) throws IOException {
+        close();
+        if (isComplete) {
+            Files.deleteIfExists(journalFile.toPath());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            lock.release();
+        } finally {
+            channel.close();
+        }
+    }
+
+    // Syncs the output of a file before its journal entry says it is complete
+    static void force(File file) throws IOException {
+        try (FileChannel output = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            output.force(true);
+        }
+    }
+
+    private synchronized long record(File file, State state, ByteBuffer payload) throws IOException {
+        Integer id = ids.get(file.getAbsolutePath());
+        if (id == null) {
+            throw new IllegalStateException("No pending record for " + file);
+        }
+        return append(state, id, payload);
+    }
+
+    // Returns the position up to which the journal has to be synced for this record to be durable
+    private synchronized long append(State state, int id, ByteBuffer payload) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(RECORD_OVERHEAD + payload.remaining());
+        record.put(state.id).putInt(id).putInt(payload.remaining()).put(payload);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 0, record.position());
+        record.putInt((int) crc.getValue()).flip();
+        while (record.hasRemaining()) {
+            channel.write(record);
+        }
+        written = channel.position();
+        return written;
+    }
+
+    private void sync(long position) throws IOException {
+        synchronized (syncLock) {
+            if (synced >= position) {
+                return;
+            }
+            long target;
+            synchronized (this) {
+                target = written;
+            }
+            channel.force(false);
+            synced = target;
+        }
+    }
+
+    // Copies the last state of every file in an abandoned journal into this one, then deletes it.
+    // Journals that are still locked belong to a batch that is running right now and are left alone
+    private void takeOver(File file) {
+        Map<String, Entry> entries;
+        try (FileChannel abandoned = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            FileLock abandonedLock;
+            try {
+                abandonedLock = abandoned.tryLock();
+            } catch (OverlappingFileLockException e) {
+                return;
+            }
+            if (abandonedLock == null) {
+                return;
+            }
+            entries = read(abandoned);
+        } catch (IOException e) {
+            System.err.println("Warning: Could not read journal " + file.getName() + ": " + e.getMessage());
+            return;
+        }
+
+        try {
+            for (Entry entry : entries.values()) {
+                String path = entry.file.getAbsolutePath();
+                Entry newer = previous.get(path);
+                if (newer != null && newer.priority() > entry.priority()) {
+                    // Two journals know the file; nothing may hide a record that still needs work
+                    continue;
+                }
+                previous.put(path, entry);
+                pending(entry.file, entry.isEncryption);
+                if (entry.state == State.DONE) {
+                    ByteBuffer payload = ByteBuffer.allocate(16);
+                    payload.putLong(entry.size).putLong(entry.lastModified).flip();
+                    record(entry.file, State.DONE, payload);
+                } else if (entry.state != State.PENDING) {
+                    record(entry.file, entry.state, ByteBuffer.allocate(0));
+                }
+            }
+            // The old journal may only go once everything it knew is safely in this one
+            sync(written);
+            Files.deleteIfExists(file.toPath());
+        } catch (IOException e) {
+            System.err.println("Warning: Could not take over journal " + file.getName() + ": " + e.getMessage());
+        }
+    }
+
+    // Reads records up to the first one that is torn or damaged, which is where the run was interrupted
+    private static Map<String, Entry> read(FileChannel channel) throws IOException {
+        Map<String, Entry> entries = new LinkedHashMap<>();
+        if (channel.size() < MAGIC.length || channel.size() > Integer.MAX_VALUE) {
+            return entries;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+        AES.readFully(channel, buffer, 0);
+        buffer.flip();
+
+        byte[] magic = new byte[MAGIC.length];
+        buffer.get(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            return entries;
+        }
+
+        List<Entry> byId = new ArrayList<>();
+        try {
+            while (buffer.hasRemaining()) {
+                int start = buffer.position();
+                State state = State.fromId(buffer.get());
+                int id = buffer.getInt();
+                int length = buffer.getInt();
+                if (state == null || length < 0 || length > buffer.remaining() - 4) {
+                    break;
+                }
+                ByteBuffer payload = (ByteBuffer) buffer.slice().limit(length);
+                buffer.position(buffer.position() + length);
+                CRC32 crc = new CRC32();
+                crc.update(buffer.array(), start, buffer.position() - start);
+                if (buffer.getInt() != (int) crc.getValue()) {
+                    break;
+                }
+
+                if (state == State.PENDING) {
+                    if (id != byId.size()) {
+                        break;
+                    }
+                    boolean isEncryption = payload.get() == 1;
+                    byte[] path = new byte[payload.remaining()];
+                    payload.get(path);
+                    byId.add(new Entry(new File(new String(path, StandardCharsets.UTF_8)), isEncryption,
+                            State.PENDING, 0, 0));
+                } else {
+                    if (id < 0 || id >= byId.size()) {
+                        break;
+                    }
+                    Entry entry = byId.get(id);
+                    long size = state == State.DONE ? payload.getLong() : 0;
+                    long lastModified = state == State.DONE ? payload.getLong() : 0;
+                    byId.set(id, new Entry(entry.file, entry.isEncryption, state, size, lastModified));
+                }
+            }
+        } catch (BufferUnderflowException e) {
+            // Torn last record
+        }
+
+        for (Entry entry : byId) {
+            entries.put(entry.file.getAbsolutePath(), entry);
+        }
+        return entries;
+    }
+}
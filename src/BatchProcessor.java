@@ -0,0 +1,619 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.DosFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs a batch of files through the AES engine on a bounded pool of workers, with the secure deletes on a
+ * pool of their own. Used by both the desktop app and the command line, so nothing here touches JavaFX.
+ */
+public class BatchProcessor {
+    // Number of files processed at the same time, can be overridden with -Daegis.parallelism=<n>
+    public static final int DEFAULT_PARALLELISM = Math.max(1,
+            Integer.getInteger("aegis.parallelism", Runtime.getRuntime().availableProcessors()));
+
+    // Number of secure deletes that can run alongside the workers, -Daegis.wipeParallelism=<n>
+    public static final int DEFAULT_WIPE_PARALLELISM =
+            Math.max(1, Integer.getInteger("aegis.wipeParallelism", DEFAULT_PARALLELISM));
+
+    // Where batch journals are kept so an interrupted batch can be resumed, -Daegis.journalDir=<dir>;
+    // -Daegis.journal=false turns them off, which also skips syncing each output before its original is wiped
+    public static final File JOURNAL_DIRECTORY = Boolean.parseBoolean(System.getProperty("aegis.journal", "true"))
+            ? new File(System.getProperty("aegis.journalDir",
+                    System.getProperty("user.home") + File.separator + ".aegis" + File.separator + "journal"))
+            : null;
+
+    // Identical files in a batch are only encrypted once and the others get a copy of the output,
+    // -Daegis.dedup=true. Costs a read of every file that has the same size as another one
+    public static final boolean DEDUPLICATE = Boolean.getBoolean("aegis.dedup");
+
+    private static final int COPY_BUFFER_SIZE = 4 * 1024 * 1024;
+
+    // Details of the result of files an interrupted earlier run already finished
+    public static final String FINISHED_EARLIER = "Finished in an earlier run";
+
+    // Called from the worker and wipe threads, several at a time
+    public interface Listener {
+        void fileStarted(int index, File file, String message);
+        void fileFinished(int index, File file, AES.ProcessingResult result, int completed, int total);
+    }
+
+    private final int parallelism;
+    private final int wipeParallelism;
+    private volatile Metrics.Snapshot metrics;
+
+    public BatchProcessor() {
+        this(DEFAULT_PARALLELISM, DEFAULT_WIPE_PARALLELISM);
+    }
+
+    public BatchProcessor(int parallelism, int wipeParallelism) {
+        this.parallelism = Math.max(1, parallelism);
+        this.wipeParallelism = Math.max(1, wipeParallelism);
+    }
+
+    // Where the last run spent its time, null before the first run
+    public Metrics.Snapshot getMetrics() {
+        return metrics;
+    }
+
+    // Blocks until every file has been processed and wiped. Returns the result of each file in the order
+    // given, with null for files that were skipped because the batch was cancelled
+    public AES.ProcessingResult[] run(List<File> files, AES.Session session, Cancellation cancellation,
+                                      Listener listener) throws InterruptedException {
+        BatchJournal journal = openJournal();
+        ExecutorService workers = Scheduler.batch("aegis-worker", parallelism);
+        ExecutorService wipers = Scheduler.batch("aegis-wipe", wipeParallelism);
+        // Cleared when a file is left halfway, in which case the journal is kept for the next run
+        AtomicBoolean isComplete = new AtomicBoolean(journal == null || finishInFlight(journal, wipers));
+
+        Metrics.QUEUED_FILES.resetPeak();
+        Metrics.QUEUED_WIPES.resetPeak();
+        Metrics.Snapshot start = Metrics.snapshot();
+
+        boolean isFinished = false;
+        try {
+            // Each group of identical files is processed by one worker, which copies the output of the first
+            Duplicates duplicates = DEDUPLICATE ? findDuplicates(files, workers, cancellation) : Duplicates.NONE;
+            Run batch = new Run(files, session, cancellation, listener, journal, wipers, isComplete, duplicates);
+            Set<Integer> copies = new HashSet<>();
+            for (List<Integer> group : duplicates.groups.values()) {
+                copies.addAll(group);
+            }
+
+            List<Future<?>> pending = new ArrayList<>(files.size());
+            for (int i = 0; i < files.size(); i++) {
+                if (copies.contains(i)) {
+                    continue;
+                }
+                final int index = i;
+                Metrics.QUEUED_FILES.increment();
+                try {
+                    pending.add(workers.submit(() -> {
+                        Metrics.QUEUED_FILES.decrement();
+                        batch.process(index, duplicates.groups.getOrDefault(index, Collections.<Integer>emptyList()));
+                    }));
+                } catch (RejectedExecutionException e) {
+                    // Only happens when this thread is interrupted while waiting for room in the queue
+                    Metrics.QUEUED_FILES.decrement();
+                    Thread.interrupted();
+                    throw (InterruptedException) e.getCause();
+                }
+            }
+
+            awaitAll(pending);
+            awaitAll(batch.wipes);
+            isFinished = true;
+            return batch.results;
+        } finally {
+            // Workers are never interrupted: file channels close when interrupted, which could leave
+            // a file half overwritten. Queued work sees the cancelled flag and skips itself instead.
+            // Even when this thread is interrupted the journal is only closed once nothing is writing to it,
+            // and the wipers are only shut down once no worker can hand them another file
+            workers.shutdown();
+            awaitTermination(workers);
+            wipers.shutdown();
+            awaitTermination(wipers);
+            if (journal != null) {
+                closeJournal(journal, isFinished && isComplete.get() && !cancellation.isCancelled());
+            }
+            metrics = Metrics.snapshot().since(start);
+            Metrics.batchFinished(metrics);
+        }
+    }
+
+    // State of one call to run, shared by its workers and wipes
+    private static final class Run {
+        private final List<File> files;
+        private final AES.Session session;
+        private final Cancellation cancellation;
+        private final Listener listener;
+        private final BatchJournal journal;
+        private final ExecutorService wipers;
+        private final AtomicBoolean isComplete;
+        private final Duplicates duplicates;
+        private final boolean isEncryption;
+        private final String process;
+        // Each worker writes the result for its own file, so no locking is needed
+        private final AES.ProcessingResult[] results;
+        private final AtomicInteger completed = new AtomicInteger();
+        private final Queue<Future<?>> wipes = new ConcurrentLinkedQueue<>();
+
+        Run(List<File> files, AES.Session session, Cancellation cancellation, Listener listener, BatchJournal journal,
+            ExecutorService wipers, AtomicBoolean isComplete, Duplicates duplicates) {
+            this.files = files;
+            this.session = session;
+            this.cancellation = cancellation;
+            this.listener = listener;
+            this.journal = journal;
+            this.wipers = wipers;
+            this.isComplete = isComplete;
+            this.duplicates = duplicates;
+            this.isEncryption = session.isEncryption();
+            this.process = isEncryption ? "Encrypting " : "Decrypting ";
+            this.results = new AES.ProcessingResult[files.size()];
+        }
+
+        // Processes a file, then gives each of its copies a copy of the output. The first file is only wiped
+        // and moved into place once every copy has been taken from its output
+        void process(int index, List<Integer> copies) {
+            if (cancellation.isCancelled()) {
+                return;
+            }
+            Runnable wipe = processSafely(index, -1);
+            int source = wipe != null && results[index].isSuccess() ? index : -1;
+            for (int copy : copies) {
+                if (cancellation.isCancelled()) {
+                    break;
+                }
+                submitWipe(processSafely(copy, source));
+            }
+            submitWipe(wipe);
+        }
+
+        // An exception nothing below expected fails only its own file, which is then reported like any other
+        // failure instead of being left without a result
+        private Runnable processSafely(int index, int sourceIndex) {
+            long startTime = System.nanoTime();
+            try {
+                return processFile(index, sourceIndex);
+            } catch (RuntimeException | Error e) {
+                fail(index, startTime, e);
+                return null;
+            }
+        }
+
+        private void fail(int index, long startTime, Throwable e) {
+            AES.ProcessingError error = e instanceof UncheckedIOException ? AES.ProcessingError.FILE_ACCESS_ERROR
+                    : isEncryption ? AES.ProcessingError.ENCRYPTION_ERROR : AES.ProcessingError.DECRYPTION_ERROR;
+            AES.ProcessingResult result = new AES.ProcessingResult(false, error, "Unexpected error: " + e);
+            results[index] = result;
+            Metrics.fileFinished(startTime, false);
+            listener.fileFinished(index, files.get(index), result, completed.incrementAndGet(), files.size());
+        }
+
+        // Encrypts or decrypts one file, or copies the output of the file at sourceIndex when it has the same
+        // content, -1 for none. Returns the wipe that replaces the original, or null when the file is already finished
+        private Runnable processFile(int index, int sourceIndex) {
+            long startTime = System.nanoTime();
+            File original = files.get(index);
+            File source = sourceIndex < 0 ? null : files.get(sourceIndex);
+            File aegisFile = outputFile(original);
+
+            // Finished by an earlier run that was interrupted, and not touched since
+            BatchJournal.Entry previous = journal == null ? null : journal.previous(original);
+            if (previous != null && previous.isDone(isEncryption)) {
+                AES.ProcessingResult result = new AES.ProcessingResult(true, AES.ProcessingError.NONE,
+                        FINISHED_EARLIER);
+                results[index] = result;
+                listener.fileFinished(index, original, result, completed.incrementAndGet(), files.size());
+                return null;
+            }
+
+            listener.fileStarted(index, original, process + aegisFile.getName());
+
+            FileFormat format = FileFormat.probe(original);
+            boolean inPlace = AES.processesInPlace(original, format, isEncryption);
+            AES.ProcessingResult result;
+            try {
+                if (journal != null && !inPlace) {
+                    journal.pending(original, isEncryption);
+                }
+                // Either file may have been edited since it was hashed, then the copy is encrypted on its own
+                result = source != null && !inPlace
+                        && duplicates.isUnchanged(index, original) && duplicates.isUnchanged(sourceIndex, source)
+                        ? copyOutput(source, aegisFile)
+                        : AES.processFile(original, aegisFile, session, format, cancellation);
+                if (journal != null && !inPlace && result.isSuccess()) {
+                    // The output must be on disk before the journal lets the original be wiped
+                    long syncStart = System.nanoTime();
+                    BatchJournal.force(aegisFile);
+                    Metrics.record(Metrics.Phase.SYNC, syncStart, aegisFile.length());
+                    journal.processed(original);
+                }
+            } catch (IOException e) {
+                result = new AES.ProcessingResult(false, AES.ProcessingError.FILE_ACCESS_ERROR,
+                        "Could not update the batch journal: " + e.getMessage());
+            }
+            results[index] = result;
+
+            if (inPlace || result.isSkipped()) {
+                // The original was overwritten directly or left alone, there is nothing to wipe
+                if (journal != null && (result.isSuccess() || result.isSkipped())) {
+                    recordDone(journal, original, isEncryption);
+                }
+                Metrics.fileFinished(startTime, result.isSuccess() || result.isSkipped());
+                listener.fileFinished(index, original, result, completed.incrementAndGet(), files.size());
+                return null;
+            }
+
+            AES.ProcessingResult processed = result;
+            return () -> {
+                try {
+                    listener.fileStarted(index, original, "Secure deleting temporary file " + aegisFile.getName());
+                    if (journal != null && processed.isSuccess()) {
+                        if (!replaceOriginal(journal, original, aegisFile, isEncryption)) {
+                            isComplete.set(false);
+                        }
+                    } else {
+                        AES.secureDelete(original, aegisFile, processed.isSuccess());
+                    }
+                } catch (RuntimeException | Error e) {
+                    // The original may be left halfway, so the journal is kept for the next run
+                    isComplete.set(false);
+                    fail(index, startTime, e);
+                    return;
+                }
+                Metrics.fileFinished(startTime, processed.isSuccess());
+                listener.fileFinished(index, original, processed, completed.incrementAndGet(), files.size());
+            };
+        }
+
+        // The wipe runs on its own pool so this worker can move on to the next file
+        private void submitWipe(Runnable wipe) {
+            if (wipe == null) {
+                return;
+            }
+            Metrics.QUEUED_WIPES.increment();
+            wipes.add(wipers.submit(() -> {
+                Metrics.QUEUED_WIPES.decrement();
+                wipe.run();
+            }));
+        }
+    }
+
+    // The copy keeps the salt and nonce of the source, which shows the two files are equal but nothing else,
+    // and it decrypts on its own like any other file. Reads and writes are recorded apart like those of a cipher,
+    // so the progress and throughput of a batch count copied files too
+    private static AES.ProcessingResult copyOutput(File source, File aegisFile) {
+        ByteBuffer buffer = BufferPool.direct(COPY_BUFFER_SIZE);
+        try (FileChannel in = FileChannel.open(outputFile(source).toPath(), StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(aegisFile.toPath(), StandardOpenOption.WRITE,
+                     StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (true) {
+                long start = System.nanoTime();
+                buffer.clear();
+                int read = in.read(buffer);
+                if (read < 0) {
+                    break;
+                }
+                Metrics.record(Metrics.Phase.READ, start, read);
+
+                start = System.nanoTime();
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+                Metrics.record(Metrics.Phase.WRITE, start, read);
+            }
+        } catch (IOException e) {
+            return new AES.ProcessingResult(false, AES.ProcessingError.FILE_ACCESS_ERROR,
+                    "Could not copy the output of an identical file: " + e.getMessage());
+        } finally {
+            BufferPool.release(buffer);
+        }
+        return new AES.ProcessingResult(true, AES.ProcessingError.NONE, "Same content as " + source.getName());
+    }
+
+    // Groups files with the same content: only files that share their size with another are hashed, so a
+    // tree without duplicates costs one stat per file. Files that can't be hashed are left out and processed normally
+    static Duplicates findDuplicates(List<File> files, Executor executor, Cancellation cancellation)
+            throws InterruptedException {
+        // Taken before hashing, so an edit while the file is being read shows up as a different stamp
+        Map<Integer, Stamp> stamps = new HashMap<>();
+        Map<Long, List<Integer>> bySize = new HashMap<>();
+        for (int i = 0; i < files.size(); i++) {
+            Stamp stamp = new Stamp(files.get(i));
+            // Empty files have nothing worth saving, and a length of 0 is also what a missing file reports
+            if (stamp.size > 0) {
+                stamps.put(i, stamp);
+                bySize.computeIfAbsent(stamp.size, key -> new ArrayList<>()).add(i);
+            }
+        }
+
+        ChecksumService checksums = new ChecksumService(executor);
+        Map<Integer, CompletableFuture<String>> hashes = new HashMap<>();
+        for (List<Integer> group : bySize.values()) {
+            if (group.size() > 1) {
+                for (int index : group) {
+                    hashes.put(index, checksums.checksum(files.get(index), ChecksumService.Algorithm.SHA_256));
+                }
+            }
+        }
+
+        Map<String, List<Integer>> byContent = new LinkedHashMap<>();
+        for (int i = 0; i < files.size(); i++) {
+            CompletableFuture<String> hash = hashes.get(i);
+            if (hash == null || cancellation.isCancelled()) {
+                continue;
+            }
+            try {
+                // Sizes are part of the key so two files only count as equal with both the same
+                byContent.computeIfAbsent(stamps.get(i).size + ":" + hash.get(), key -> new ArrayList<>()).add(i);
+            } catch (ExecutionException e) {
+                System.err.println("Warning: Could not hash " + files.get(i) + ": " + e.getCause().getMessage());
+            }
+        }
+
+        Map<Integer, List<Integer>> groups = new HashMap<>();
+        for (List<Integer> group : byContent.values()) {
+            if (group.size() > 1) {
+                groups.put(group.get(0), new ArrayList<>(group.subList(1, group.size())));
+            }
+        }
+        return new Duplicates(groups, stamps);
+    }
+
+    // Groups of identical files found by findDuplicates, with what each file looked like when it was hashed
+    static final class Duplicates {
+        static final Duplicates NONE = new Duplicates(Collections.<Integer, List<Integer>>emptyMap(),
+                Collections.<Integer, Stamp>emptyMap());
+
+        // The index of the first file of each group mapped to the indexes of the others
+        final Map<Integer, List<Integer>> groups;
+        private final Map<Integer, Stamp> stamps;
+
+        Duplicates(Map<Integer, List<Integer>> groups, Map<Integer, Stamp> stamps) {
+            this.groups = groups;
+            this.stamps = stamps;
+        }
+
+        // False when the file changed size or was written to since it was hashed
+        boolean isUnchanged(int index, File file) {
+            Stamp stamp = stamps.get(index);
+            return stamp != null && stamp.equals(new Stamp(file));
+        }
+    }
+
+    private static final class Stamp {
+        final long size;
+        final long lastModified;
+
+        Stamp(File file) {
+            this.size = file.length();
+            this.lastModified = file.lastModified();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Stamp)) {
+                return false;
+            }
+            Stamp other = (Stamp) o;
+            return size == other.size && lastModified == other.lastModified;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(size) * 31 + Long.hashCode(lastModified);
+        }
+    }
+
+    private static File outputFile(File original) {
+        return new File(original.getParent(), original.getName() + ".aegis");
+    }
+
+    private static BatchJournal openJournal() {
+        if (JOURNAL_DIRECTORY == null) {
+            return null;
+        }
+        try {
+            return BatchJournal.open(JOURNAL_DIRECTORY);
+        } catch (IOException e) {
+            System.err.println("Warning: Could not open the batch journal, this batch can't be resumed: "
+                    + e.getMessage());
+            return null;
+        }
+    }
+
+    // Journal is deleted if the batch ran to the end, and kept for the next run if it didn't
+    private static void closeJournal(BatchJournal journal, boolean isComplete) {
+        try {
+            journal.close(isComplete);
+        } catch (IOException e) {
+            System.err.println("Warning: Could not close the batch journal: " + e.getMessage());
+        }
+    }
+
+    // Completes files an earlier run left between writing their output and replacing the original, whether
+    // or not they are part of this batch. Their originals may already be wiped, so this can't wait for the
+    // user to select them again. The wipes run on the wipe pool, whose threads are never interrupted, and
+    // are waited for even if this thread is. Returns false if any of them couldn't be finished
+    private static boolean finishInFlight(BatchJournal journal, ExecutorService wipers) {
+        AtomicBoolean finished = new AtomicBoolean(true);
+        List<Future<?>> pending = new ArrayList<>();
+        for (BatchJournal.Entry entry : journal.inFlight()) {
+            try {
+                pending.add(wipers.submit(() -> {
+                    boolean isFinished = false;
+                    try {
+                        isFinished = finishInFlight(journal, entry);
+                    } finally {
+                        if (!isFinished) {
+                            finished.set(false);
+                        }
+                    }
+                }));
+            } catch (RejectedExecutionException e) {
+                // Interrupted while the pool was full, the rest is left for the next run
+                finished.set(false);
+                break;
+            }
+        }
+        awaitUninterruptibly(pending);
+        return finished.get();
+    }
+
+    private static boolean finishInFlight(BatchJournal journal, BatchJournal.Entry entry) {
+        File original = entry.file;
+        File aegisFile = outputFile(original);
+        try {
+            if (aegisFile.exists()) {
+                if (entry.state == BatchJournal.State.PROCESSED && original.exists()
+                        && !AES.wipeOriginal(original)) {
+                    return false;
+                }
+                journal.wiped(original);
+                if (!AES.replaceOriginal(original, aegisFile)) {
+                    return false;
+                }
+            }
+            // Without an output left over, the rename already happened before the run stopped
+            if (original.exists()) {
+                journal.done(original, entry.isEncryption);
+            }
+            return true;
+        } catch (IOException e) {
+            System.err.println("Warning: Could not finish " + original + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    // Wipes the original and moves the output into its place, journaling each step. Returns false if the
+    // file was left halfway
+    private static boolean replaceOriginal(BatchJournal journal, File original, File aegisFile,
+                                           boolean isEncryption) {
+        if (!AES.wipeOriginal(original)) {
+            return false;
+        }
+        try {
+            journal.wiped(original);
+        } catch (IOException e) {
+            System.err.println("Warning: Could not update the batch journal: " + e.getMessage());
+        }
+        if (!AES.replaceOriginal(original, aegisFile)) {
+            return false;
+        }
+        recordDone(journal, original, isEncryption);
+        return true;
+    }
+
+    private static void recordDone(BatchJournal journal, File original, boolean isEncryption) {
+        try {
+            journal.done(original, isEncryption);
+        } catch (IOException e) {
+            System.err.println("Warning: Could not update the batch journal: " + e.getMessage());
+        }
+    }
+
+    private static void awaitAll(Iterable<Future<?>> futures) throws InterruptedException {
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                // Tasks record their own failures as the result of their file, so there is nothing left to report
+            }
+        }
+    }
+
+    // Like awaitAll, but keeps waiting when interrupted and restores the interrupt afterwards
+    private static void awaitUninterruptibly(Iterable<Future<?>> futures) {
+        boolean interrupted = false;
+        for (Future<?> future : futures) {
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Waits for a shut down pool to run its remaining tasks, whether or not this thread is interrupted
+    private static void awaitTermination(ExecutorService pool) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                if (pool.awaitTermination(1, TimeUnit.MINUTES)) {
+                    break;
+                }
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Files that can be picked up by a batch: skips hidden and system files, temporary files and the
+    // files Aegis leaves behind while it works
+    public static boolean isValidFile(File file) {
+        // Skip null, hidden, or system files
+        if (file == null || file.isHidden()) {
+            return false;
+        }
+
+        try {
+            DosFileAttributes attrs = Files.readAttributes(file.toPath(), DosFileAttributes.class);
+            if (attrs.isHidden() || attrs.isSystem()) {
+                return false;
+            }
+        } catch (IOException e) {
+            // If we can't read attributes, skip the file
+            return false;
+        } catch (UnsupportedOperationException e) {
+            // No DOS attributes outside of Windows, the hidden check above already covers these
+        }
+
+        // Skip temporary files and specific extensions
+        String name = file.getName().toLowerCase();
+        if (name.startsWith("~") || name.startsWith(".")) {
+            return false;
+        }
+
+        return !name.endsWith(".tmp") &&
+                !name.endsWith(".aegis") &&  // Skip temporary output of an interrupted run
+                !name.endsWith(InPlaceCipher.JOURNAL_EXTENSION) &&  // Skip in-place journals
+                !name.endsWith(".lnk");      // Skip shortcuts
+    }
+}
@@ -0,0 +1,116 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
+
+/**
+ * Chunk buffers shared by every thread of the app. A buffer is borrowed for one chunk or one file and given back
+ * afterwards, so a long batch keeps cycling through the same few buffers instead of every worker, wipe, stage and
+ * io thread holding on to buffers of its own, and the hot paths allocate nothing per file once the pool is warm.
+ *
+ * Buffers come in two sizes, 1 MB and 4 MB, with a little room to spare for a tag and a flag byte. Larger requests
+ * are allocated and not kept. Up to MAX_IDLE_BYTES of each kind and size wait for reuse, the rest are left to the
+ * garbage collector.
+ *
+ * Direct buffers are for code that moves data between channels and the JCE ByteBuffer methods, so the kernel can
+ * copy straight in and out of them. The chunk ciphers seal in place in arrays instead: on Java 8 the JCE copies
+ * direct buffers through temporary arrays and Deflater only takes arrays, so arrays keep their loops allocation free.
+ *
+ * Buffers are zeroed when they are given back, so plaintext and keystream don't linger in idle buffers or reach
+ * whichever code borrows them next. That is one extra pass over memory per chunk, small next to the cipher pass.
+ */
+final class BufferPool {
+    private static final int SLACK = 64;
+    private static final int[] SIZES = {1024 * 1024, 4 * 1024 * 1024};
+    private static final long MAX_IDLE_BYTES = 64L * 1024 * 1024;
+    private static final byte[] ZEROS = new byte[64 * 1024];
+
+    private static final Pool<byte[]>[] ARRAYS = pools(byte[]::new);
+    private static final Pool<ByteBuffer>[] DIRECT = pools(ByteBuffer::allocateDirect);
+
+    private BufferPool() {
+    }
+
+    // An array of at least size bytes, with undefined contents
+    static byte[] array(int size) {
+        int sizeClass = sizeClass(size);
+        return sizeClass < 0 ? new byte[size] : ARRAYS[sizeClass].take();
+    }
+
+    static void release(byte[] array) {
+        Arrays.fill(array, (byte) 0);
+        int sizeClass = sizeClass(array.length - SLACK);
+        if (sizeClass >= 0 && array.length == SIZES[sizeClass] + SLACK) {
+            ARRAYS[sizeClass].give(array);
+        }
+    }
+
+    // A cleared direct buffer with room for at least size bytes, limited to size
+    static ByteBuffer direct(int size) {
+        int sizeClass = sizeClass(size);
+        ByteBuffer buffer = sizeClass < 0 ? ByteBuffer.allocateDirect(size) : DIRECT[sizeClass].take();
+        buffer.clear();
+        buffer.limit(size);
+        return buffer;
+    }
+
+    static void release(ByteBuffer buffer) {
+        zero(buffer);
+        int sizeClass = sizeClass(buffer.capacity() - SLACK);
+        if (buffer.isDirect() && sizeClass >= 0 && buffer.capacity() == SIZES[sizeClass] + SLACK) {
+            DIRECT[sizeClass].give(buffer);
+        }
+    }
+
+    private static void zero(ByteBuffer buffer) {
+        if (buffer.isReadOnly()) {
+            return;
+        }
+        buffer.clear();
+        while (buffer.hasRemaining()) {
+            buffer.put(ZEROS, 0, Math.min(ZEROS.length, buffer.remaining()));
+        }
+        buffer.clear();
+    }
+
+    private static int sizeClass(int size) {
+        for (int i = 0; i < SIZES.length; i++) {
+            if (size <= SIZES[i] + SLACK) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static <T> Pool<T>[] pools(IntFunction<T> allocator) {
+        Pool<T>[] pools = new Pool[SIZES.length];
+        for (int i = 0; i < SIZES.length; i++) {
+            int capacity = SIZES[i] + SLACK;
+            pools[i] = new Pool<>(() -> allocator.apply(capacity), (int) (MAX_IDLE_BYTES / SIZES[i]));
+        }
+        return pools;
+    }
+
+    // An array backed queue, so handing a buffer back doesn't allocate a node like a linked queue would
+    private static final class Pool<T> {
+        private final Supplier<T> allocator;
+        private final BlockingQueue<T> idle;
+
+        Pool(Supplier<T> allocator, int maxIdle) {
+            this.allocator = allocator;
+            this.idle = new ArrayBlockingQueue<>(maxIdle);
+        }
+
+        T take() {
+            T buffer = idle.poll();
+            return buffer != null ? buffer : allocator.get();
+        }
+
+        void give(T buffer) {
+            idle.offer(buffer);
+        }
+    }
+}
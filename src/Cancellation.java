@@ -0,0 +1,9 @@
+/**
+ * Checked by the engine between chunks of work so a long batch can be stopped. Kept free of JavaFX so the
+ * engine runs the same from the desktop app and the command line.
+ */
+public interface Cancellation {
+    Cancellation NEVER = () -> false;
+
+    boolean isCancelled();
+}
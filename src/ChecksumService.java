@@ -0,0 +1,184 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.zip.CRC32;
+
+/**
+ * Computes file checksums on the shared io threads and remembers them by (path, size, last modified), so
+ * opening the preview of a large file a second time is instant. Asking for a file that is still being
+ * hashed joins the running computation instead of starting another one.
+ *
+ * The algorithm is chosen with -Daegis.checksum=sha-256|sha-512|md5|crc32, the default is sha-256.
+ * BLAKE3 and xxHash aren't part of the JDK; CRC32 is the fast non-cryptographic option.
+ */
+public class ChecksumService {
+    public enum Algorithm {
+        SHA_256("SHA-256"), SHA_512("SHA-512"), MD5("MD5"), CRC32("CRC32");
+
+        private final String displayName;
+
+        Algorithm(String displayName) {
+            this.displayName = displayName;
+        }
+
+        public String getDisplayName() { return displayName; }
+    }
+
+    public static final Algorithm DEFAULT_ALGORITHM = fromProperty(System.getProperty("aegis.checksum", "sha-256"));
+
+    // Large reads keep the disk streaming; the buffer is direct so the kernel copies straight into it
+    private static final int BUFFER_SIZE = 4 * 1024 * 1024;
+
+    private static final int CACHE_SIZE = 1024;
+
+    // Previews are waited on, so their checksums go ahead of queued bulk work on the io threads
+    public static final ChecksumService SHARED = new ChecksumService(Scheduler.io(Scheduler.Priority.INTERACTIVE));
+
+    private final Executor executor;
+    // Least recently used entries are dropped once the cache is full
+    private final Map<Key, CompletableFuture<String>> cache = new LinkedHashMap<Key, CompletableFuture<String>>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, CompletableFuture<String>> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    public ChecksumService(Executor executor) {
+        this.executor = executor;
+    }
+
+    static Algorithm fromProperty(String value) {
+        switch (value.trim().toLowerCase(Locale.ROOT).replace("-", "").replace("_", "")) {
+            case "sha256":
+                return Algorithm.SHA_256;
+            case "sha512":
+                return Algorithm.SHA_512;
+            case "md5":
+                return Algorithm.MD5;
+            case "crc32":
+                return Algorithm.CRC32;
+            default:
+                System.err.println("Warning: Unknown checksum \"" + value + "\", using sha-256");
+                return Algorithm.SHA_256;
+        }
+    }
+
+    public CompletableFuture<String> checksum(File file) {
+        return checksum(file, DEFAULT_ALGORITHM);
+    }
+
+    // Completes with the lowercase hex checksum, or exceptionally if the file can't be read
+    public CompletableFuture<String> checksum(File file, Algorithm algorithm) {
+        Key key;
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+            key = new Key(file.getAbsolutePath(), attrs.size(), attrs.lastModifiedTime().toMillis(), algorithm);
+        } catch (IOException e) {
+            CompletableFuture<String> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+
+        CompletableFuture<String> result;
+        synchronized (cache) {
+            result = cache.get(key);
+            if (result != null) {
+                return result;
+            }
+            result = CompletableFuture.supplyAsync(() -> compute(file, algorithm), executor);
+            cache.put(key, result);
+        }
+
+        // Failures aren't remembered, the next request tries again
+        CompletableFuture<String> pending = result;
+        result.whenComplete((checksum, error) -> {
+            if (error != null) {
+                synchronized (cache) {
+                    cache.remove(key, pending);
+                }
+            }
+        });
+        return result;
+    }
+
+    private static String compute(File file, Algorithm algorithm) {
+        ByteBuffer buffer = BufferPool.direct(BUFFER_SIZE);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (algorithm == Algorithm.CRC32) {
+                CRC32 crc = new CRC32();
+                for (buffer.clear(); channel.read(buffer) != -1; buffer.clear()) {
+                    buffer.flip();
+                    crc.update(buffer);
+                }
+                return String.format("%08x", crc.getValue());
+            }
+
+            MessageDigest digest = MessageDigest.getInstance(algorithm.getDisplayName());
+            for (buffer.clear(); channel.read(buffer) != -1; buffer.clear()) {
+                buffer.flip();
+                digest.update(buffer);
+            }
+            return toHex(digest.digest());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(algorithm.getDisplayName() + " is not available", e);
+        } finally {
+            BufferPool.release(buffer);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] digits = "0123456789abcdef".toCharArray();
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[i * 2] = digits[(bytes[i] >> 4) & 0xf];
+            hex[i * 2 + 1] = digits[bytes[i] & 0xf];
+        }
+        return new String(hex);
+    }
+
+    private static final class Key {
+        private final String path;
+        private final long size;
+        private final long lastModified;
+        private final Algorithm algorithm;
+
+        Key(String path, long size, long lastModified, Algorithm algorithm) {
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.algorithm = algorithm;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return size == other.size && lastModified == other.lastModified
+                    && algorithm == other.algorithm && path.equals(other.path);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = path.hashCode();
+            result = 31 * result + Long.hashCode(size);
+            result = 31 * result + Long.hashCode(lastModified);
+            return 31 * result + algorithm.hashCode();
+        }
+    }
+}
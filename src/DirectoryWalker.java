@@ -0,0 +1,112 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Walks files and directory trees on the Scheduler's walk pool, one task per directory, and hands the regular
+ * files that pass the filter to a consumer in batches as soon as they are found. The consumer is called from
+ * several threads at once.
+ */
+public class DirectoryWalker {
+    private static final int BATCH_SIZE = 256;
+
+    private final Predicate<File> filter;
+    private final Consumer<List<File>> consumer;
+    private final Queue<IOException> errors = new ConcurrentLinkedQueue<>();
+
+    public DirectoryWalker(Predicate<File> filter, Consumer<List<File>> consumer) {
+        this.filter = filter;
+        this.consumer = consumer;
+    }
+
+    // Blocks until everything has been walked. Unreadable directories are skipped so the rest can still be
+    // imported, and the first such error is thrown at the end
+    public void walk(List<File> roots) throws IOException {
+        Scheduler.walk().invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                List<File> batch = new ArrayList<>();
+                List<DirectoryTask> directories = new ArrayList<>();
+                for (File root : roots) {
+                    if (root.isDirectory()) {
+                        directories.add(new DirectoryTask(root.toPath()));
+                    } else if (root.isFile() && filter.test(root)) {
+                        batch.add(root);
+                    }
+                }
+                if (!batch.isEmpty()) {
+                    consumer.accept(batch);
+                }
+                invokeAll(directories);
+            }
+        });
+
+        IOException error = errors.peek();
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    private class DirectoryTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Path directory;
+
+        DirectoryTask(Path directory) {
+            this.directory = directory;
+        }
+
+        @Override
+        protected void compute() {
+            List<File> batch = new ArrayList<>();
+            List<DirectoryTask> subdirectories = new ArrayList<>();
+
+            try {
+                // Depth 1 lists the directory and hands over the attributes read along with each entry
+                Files.walkFileTree(directory, Collections.emptySet(), 1, new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                        if (attrs.isDirectory()) {
+                            subdirectories.add(new DirectoryTask(file));
+                        } else if (attrs.isRegularFile() || (attrs.isSymbolicLink() && Files.isRegularFile(file))) {
+                            File candidate = file.toFile();
+                            if (filter.test(candidate)) {
+                                batch.add(candidate);
+                                if (batch.size() >= BATCH_SIZE) {
+                                    consumer.accept(new ArrayList<>(batch));
+                                    batch.clear();
+                                }
+                            }
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFileFailed(Path file, IOException e) {
+                        errors.add(e);
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+            } catch (IOException e) {
+                errors.add(e);
+            }
+
+            if (!batch.isEmpty()) {
+                consumer.accept(batch);
+            }
+            invokeAll(subdirectories);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Tells which format a file is in from its first bytes. Every format Aegis writes starts with an 8 byte
+ * magic: "AEGIS", two letters naming the format and a version digit, so a single small read classifies
+ * a file without decrypting anything. Files from the very first version have no header and show up as PLAIN.
+ */
+public enum FileFormat {
+    PLAIN(),
+    // Current format, see AeadCipher. Version 2 had no compression, version 1 derived its keys without a salted KDF
+    AUTHENTICATED("AE3", "AE2", "AE1"),
+    // Older chunked CTR format, see ParallelCipher
+    CHUNKED_CTR("PC1"),
+    // Encrypted in place, see InPlaceCipher. Version 1 used the unsalted key of the older formats
+    IN_PLACE("IP2", "IP1"),
+    // Many files packed into one, see ArchiveCipher
+    ARCHIVE("AR1"),
+    // Starts like an Aegis file but isn't a format this version knows, e.g. written by a newer version
+    UNSUPPORTED();
+
+    private static final int MAGIC_SIZE = 8;
+    private static final byte[] PREFIX = "AEGIS".getBytes(StandardCharsets.US_ASCII);
+
+    // The first magic is the one written, later ones are older versions that can still be read
+    private final byte[][] magics;
+
+    FileFormat(String... suffixes) {
+        this.magics = new byte[suffixes.length][];
+        for (int i = 0; i < suffixes.length; i++) {
+            magics[i] = ("AEGIS" + suffixes[i]).getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    byte[] magic() {
+        return magics[0].clone();
+    }
+
+    public boolean isEncrypted() {
+        return this != PLAIN;
+    }
+
+    // Files that can't be read are reported as PLAIN, the error shows up when they are processed
+    public static FileFormat probe(File file) {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(MAGIC_SIZE);
+            AES.readFully(channel, buffer, 0);
+            buffer.flip();
+            return classify(buffer);
+        } catch (IOException e) {
+            // Also the case for files shorter than a magic
+            return PLAIN;
+        }
+    }
+
+    static FileFormat classify(ByteBuffer head) {
+        if (head.remaining() < MAGIC_SIZE) {
+            return PLAIN;
+        }
+        byte[] bytes = new byte[MAGIC_SIZE];
+        head.duplicate().get(bytes);
+
+        for (FileFormat format : values()) {
+            for (byte[] magic : format.magics) {
+                if (Arrays.equals(bytes, magic)) {
+                    return format;
+                }
+            }
+        }
+        return looksLikeMagic(bytes) ? UNSUPPORTED : PLAIN;
+    }
+
+    // Strict about the shape so a text file that merely starts with "AEGIS" still counts as plain
+    private static boolean looksLikeMagic(byte[] bytes) {
+        return Arrays.equals(Arrays.copyOf(bytes, PREFIX.length), PREFIX)
+                && bytes[5] >= 'A' && bytes[5] <= 'Z'
+                && bytes[6] >= 'A' && bytes[6] <= 'Z'
+                && bytes[7] >= '1' && bytes[7] <= '9';
+    }
+}
@@ -0,0 +1,589 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Encrypts and decrypts files by overwriting them chunk by chunk, without a temporary copy.
+ *
+ * The data keeps its offsets and goes through the same CTR keystream as the chunked format, except the
+ * first header-sized bytes, which are moved to the end of the file so the header can sit at the front:
+ * header | ciphertext[header size..length) | ciphertext[0..header size) | tag per chunk (16 each)
+ *
+ * Header: magic (8) | chunk size (4) | nonce (8) | plaintext length (8) | key check (16) | KDF params (21) | salt (16)
+ * The keystream key is derived from the password through KeyDerivation and the file's salt, like the
+ * authenticated format's. Each tag is an HMAC-SHA256, cut to 16 bytes, of the header, the chunk index and the
+ * chunk's ciphertext, so decryption checks the whole file before touching it and refuses damaged ones.
+ * Version 1 headers stop after the key check, use the unsalted key of the older formats and have no tags;
+ * those files and their journals are still decrypted and finished.
+ *
+ * Every step is recorded in a small journal next to the file before the file is touched, so an
+ * interrupted run is finished by simply processing the file again with the same password.
+ */
+public class InPlaceCipher {
+    private static final byte[] MAGIC = FileFormat.IN_PLACE.magic();
+    private static final byte[] V1_MAGIC = {'A', 'E', 'G', 'I', 'S', 'I', 'P', '1'};
+    private static final byte[] JOURNAL_MAGIC = {'A', 'E', 'G', 'I', 'S', 'J', 'N', '1'};
+    public static final String JOURNAL_EXTENSION = ".aegis-journal";
+
+    private static final int V1_HEADER_SIZE = ParallelCipher.HEADER_SIZE;
+    private static final int HEADER_SIZE = V1_HEADER_SIZE + KeyDerivation.PARAMS_SIZE + AeadCipher.SALT_SIZE;
+    private static final int CHUNK_SIZE = ParallelCipher.CHUNK_SIZE;
+
+    // Chunk steps journal a CRC per block of the intended output rather than the data itself. After a
+    // crash each block of the interrupted chunk is either still the input, already the output, or torn
+    private static final int BLOCK_SIZE = 4096;
+    private static final int MAX_PAYLOAD = Math.max(HEADER_SIZE, CHUNK_SIZE / BLOCK_SIZE * 4);
+
+    // Journal layout: magic (8) | direction (1) | padding (3) | CRC of direction and header (4) | file header
+    //                 | slot 0 | slot 1
+    // Slot layout: step (8) | payload length (4) | payload | CRC of everything before it (8)
+    // The file header carries its own magic, so the slots start wherever a header of that version ends
+    private static final int JOURNAL_PREFIX_SIZE = 16;
+    private static final int SLOT_SIZE = 8 + 4 + MAX_PAYLOAD + 8;
+
+    private static final byte ENCRYPT = 1;
+    private static final byte DECRYPT = 2;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    public static File journalFor(File file) {
+        return new File(file.getParent(), file.getName() + JOURNAL_EXTENSION);
+    }
+
+    // Files shorter than the header have nothing to swap it with, those go through the regular path
+    public static boolean canEncrypt(File file) {
+        return file.length() >= HEADER_SIZE;
+    }
+
+    // Cancellation is not checked here on purpose: stopping halfway would leave a file that is part
+    // plaintext and part ciphertext until the batch is run again
+    public static AES.ProcessingResult process(File file, AES.Session session, boolean isEncryption) {
+        File journalFile = journalFor(file);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            Run run;
+            if (journalFile.exists() && !Run.hasValidHeader(journalFile)) {
+                // The journal header is written before the file is touched, so the file is still intact
+                if (!journalFile.delete()) {
+                    throw new IOException("Could not remove incomplete journal " + journalFile.getName());
+                }
+            }
+            if (journalFile.exists()) {
+                run = Run.resume(channel, journalFile, session, isEncryption);
+            } else {
+                run = Run.start(channel, journalFile, session, isEncryption);
+            }
+            if (run == null) {
+                return new AES.ProcessingResult(false, AES.ProcessingError.INVALID_KEY,
+                        "The password does not match this file");
+            }
+
+            try {
+                run.finish();
+            } finally {
+                run.journal.close();
+            }
+
+            try (FileChannel journal = FileChannel.open(journalFile.toPath(), StandardOpenOption.WRITE)) {
+                SecureWipe.DEFAULT.wipe(journal);
+            }
+            if (!journalFile.delete()) {
+                System.err.println("Warning: Could not delete journal " + journalFile.getName());
+            }
+            return new AES.ProcessingResult(true, AES.ProcessingError.NONE, "");
+
+        } catch (InvalidFileException e) {
+            return new AES.ProcessingResult(false,
+                    isEncryption ? AES.ProcessingError.ENCRYPTION_ERROR : AES.ProcessingError.DECRYPTION_ERROR,
+                    e.getMessage());
+        } catch (IOException e) {
+            return new AES.ProcessingResult(false, AES.ProcessingError.FILE_ACCESS_ERROR,
+                    "Could not process file in place: " + e.getMessage());
+        } catch (GeneralSecurityException e) {
+            return new AES.ProcessingResult(false, AES.ProcessingError.INVALID_KEY, e.getMessage());
+        }
+    }
+
+    // One encryption or decryption of a file. The work is a fixed list of steps:
+    //   encrypt: chunk 0..n-1, copy the first header-sized bytes to the end, write the header
+    //   decrypt: move the last header-sized bytes back to the front, truncate, chunk 0..n-1
+    private static class Run {
+        private final FileChannel file;
+        private final FileChannel journal;
+        private final FileHeader fileHeader;
+        private final ParallelCipher.Header header;
+        private final SecretKeySpec key;
+        // Null for version 1 files, which have no tags
+        private final SecretKeySpec macKey;
+        private final boolean isEncryption;
+        private final long chunks;
+        private final long slotsStart;
+
+        private Run(FileChannel file, FileChannel journal, FileHeader fileHeader, SecretKeySpec key,
+                    boolean isEncryption) throws GeneralSecurityException {
+            this.file = file;
+            this.journal = journal;
+            this.fileHeader = fileHeader;
+            this.header = fileHeader.chunks;
+            this.key = key;
+            this.macKey = fileHeader.kdf == null ? null : macKey(key);
+            this.isEncryption = isEncryption;
+            this.chunks = header.chunkCount();
+            this.slotsStart = JOURNAL_PREFIX_SIZE + fileHeader.size();
+        }
+
+        static Run start(FileChannel file, File journalFile, AES.Session session, boolean isEncryption)
+                throws IOException, GeneralSecurityException {
+            FileHeader header;
+            SecretKeySpec key;
+            if (isEncryption) {
+                byte[] salt = new byte[AeadCipher.SALT_SIZE];
+                RANDOM.nextBytes(salt);
+                KeyDerivation.Params kdf = session.batchParams();
+                key = session.fileKey(kdf, salt);
+                header = new FileHeader(ParallelCipher.Header.create(key, file.size()), kdf, salt);
+            } else {
+                header = FileHeader.read(file, 0);
+                if (header == null || file.size() != header.chunks.length + header.size() + header.tagsSize()) {
+                    throw new InvalidFileException("Invalid or truncated file header");
+                }
+                key = header.key(session);
+                if (!header.chunks.matches(key)) {
+                    return null;
+                }
+                if (header.kdf != null) {
+                    // Checked before the journal exists, so a damaged file is left exactly as it was
+                    new Run(file, null, header, key, false).verify();
+                }
+            }
+
+            FileChannel journal = FileChannel.open(journalFile.toPath(), StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW);
+            byte direction = isEncryption ? ENCRYPT : DECRYPT;
+            ByteBuffer headerBuffer = header.toBuffer();
+            ByteBuffer buffer = ByteBuffer.allocate(JOURNAL_PREFIX_SIZE + header.size());
+            buffer.put(JOURNAL_MAGIC).put(direction).put(new byte[3]).putInt(headerCrc(direction, headerBuffer));
+            buffer.put(headerBuffer);
+            buffer.flip();
+            AES.writeFully(journal, buffer, 0);
+            journal.force(false);
+
+            Run run = new Run(file, journal, header, key, isEncryption);
+            run.nextStep = 0;
+            return run;
+        }
+
+        static boolean hasValidHeader(File journalFile) throws IOException {
+            try (FileChannel journal = FileChannel.open(journalFile.toPath(), StandardOpenOption.READ)) {
+                return readJournalHeader(journal) != null;
+            }
+        }
+
+        static Run resume(FileChannel file, File journalFile, AES.Session session, boolean isEncryption)
+                throws IOException, GeneralSecurityException {
+            FileChannel journal = FileChannel.open(journalFile.toPath(), StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            try {
+                ByteBuffer buffer = readJournalHeader(journal);
+                if (buffer == null) {
+                    throw new InvalidFileException("The journal next to this file is damaged");
+                }
+                byte direction = buffer.get(JOURNAL_MAGIC.length);
+                if (direction != (isEncryption ? ENCRYPT : DECRYPT)) {
+                    throw new InvalidFileException("An interrupted " + (direction == ENCRYPT ? "encryption" : "decryption")
+                            + " of this file has to be finished first");
+                }
+
+                buffer.position(JOURNAL_PREFIX_SIZE);
+                FileHeader header = FileHeader.parse(buffer.slice());
+                if (header == null) {
+                    throw new InvalidFileException("The journal next to this file is damaged");
+                }
+                // An old journal finishes in its own version, so an interrupted version 1 run keeps its key
+                SecretKeySpec key = header.key(session);
+                if (!header.chunks.matches(key)) {
+                    journal.close();
+                    return null;
+                }
+
+                Run run = new Run(file, journal, header, key, isEncryption);
+                Slot last = run.latestSlot();
+                if (last == null) {
+                    run.nextStep = 0;
+                } else {
+                    run.redo(last);
+                    run.nextStep = last.step + 1;
+                }
+                return run;
+            } catch (IOException | GeneralSecurityException | RuntimeException e) {
+                journal.close();
+                throw e;
+            }
+        }
+
+        // The journal prefix and file header, or null when the header was never completely written
+        private static ByteBuffer readJournalHeader(FileChannel journal) throws IOException {
+            if (journal.size() < JOURNAL_PREFIX_SIZE + FileHeader.MAGIC_SIZE) {
+                return null;
+            }
+            int headerSize = FileHeader.size(readMagic(journal, JOURNAL_PREFIX_SIZE));
+            if (headerSize < 0 || journal.size() < JOURNAL_PREFIX_SIZE + headerSize) {
+                return null;
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocate(JOURNAL_PREFIX_SIZE + headerSize);
+            AES.readFully(journal, buffer, 0);
+            buffer.flip();
+            byte[] magic = new byte[JOURNAL_MAGIC.length];
+            buffer.get(magic);
+            byte direction = buffer.get();
+            int crc = buffer.getInt(JOURNAL_PREFIX_SIZE - 4);
+            buffer.position(JOURNAL_PREFIX_SIZE);
+            boolean valid = Arrays.equals(magic, JOURNAL_MAGIC) && crc == headerCrc(direction, buffer.slice());
+            buffer.rewind();
+            return valid ? buffer : null;
+        }
+
+        private static int headerCrc(byte direction, ByteBuffer header) {
+            CRC32 crc = new CRC32();
+            crc.update(direction);
+            crc.update(header.duplicate());
+            return (int) crc.getValue();
+        }
+
+        private long nextStep;
+
+        void finish() throws IOException, GeneralSecurityException {
+            long steps = chunks + 2;
+            for (; nextStep < steps; nextStep++) {
+                runStep(nextStep);
+            }
+        }
+
+        private void runStep(long step) throws IOException, GeneralSecurityException {
+            long length = header.length;
+            if (isEncryption) {
+                if (step < chunks) {
+                    runChunk(step, null);
+                } else if (step == chunks) {
+                    // The first bytes are already ciphertext at this point
+                    writeLiteral(step, readBytes(0, fileHeader.size()), length);
+                } else {
+                    writeLiteral(step, bytes(fileHeader.toBuffer()), 0);
+                }
+            } else {
+                if (step == 0) {
+                    writeLiteral(step, readBytes(length, fileHeader.size()), 0);
+                } else if (step == 1) {
+                    record(step, new byte[0]);
+                    truncate();
+                } else {
+                    runChunk(step - 2, null);
+                }
+            }
+        }
+
+        private void redo(Slot slot) throws IOException, GeneralSecurityException {
+            boolean chunkStep = isEncryption ? slot.step < chunks : slot.step >= 2;
+            if (chunkStep) {
+                runChunk(isEncryption ? slot.step : slot.step - 2, slot.payload);
+            } else if (!isEncryption && slot.step == 1) {
+                truncate();
+            } else {
+                long position = isEncryption ? (slot.step == chunks ? header.length : 0) : 0;
+                AES.writeFully(file, ByteBuffer.wrap(slot.payload), position);
+                file.force(false);
+            }
+        }
+
+        // Runs one chunk through the keystream. On a fresh run the CRCs of the output blocks are journaled
+        // first; when redoing, each block is matched against those CRCs to find which ones still need it
+        private void runChunk(long index, byte[] crcs) throws IOException, GeneralSecurityException {
+            long offset = index * header.chunkSize;
+            int size = (int) Math.min(header.chunkSize, header.length - offset);
+            // Chunks are several MB, so both copies come from the pool rather than being allocated per chunk
+            byte[] current = BufferPool.array(size);
+            byte[] output = BufferPool.array(size);
+            try {
+                long start = System.nanoTime();
+                AES.readFully(file, ByteBuffer.wrap(current, 0, size), offset);
+                Metrics.record(Metrics.Phase.READ, start, size);
+                start = System.nanoTime();
+                System.arraycopy(current, 0, output, 0, size);
+                ParallelCipher.applyKeystream(key, header.nonce, offset, output, size);
+                Metrics.record(Metrics.Phase.CIPHER, start, size);
+
+                if (crcs == null) {
+                    crcs = blockCrcs(output, size);
+                    record(isEncryption ? index : index + 2, crcs);
+                } else {
+                    ByteBuffer expected = ByteBuffer.wrap(crcs);
+                    for (int block = 0; block * BLOCK_SIZE < size; block++) {
+                        int from = block * BLOCK_SIZE;
+                        int to = Math.min(size, from + BLOCK_SIZE);
+                        int crc = expected.getInt();
+                        if (crc(current, from, to) == crc) {
+                            System.arraycopy(current, from, output, from, to - from);
+                        } else if (crc(output, from, to) != crc) {
+                            throw new InvalidFileException("Data at offset " + (offset + from)
+                                    + " was damaged by the interrupted run and cannot be recovered");
+                        }
+                    }
+                }
+
+                start = System.nanoTime();
+                AES.writeFully(file, ByteBuffer.wrap(output, 0, size), offset);
+                if (isEncryption && macKey != null) {
+                    // Past the end until the first bytes are moved there, which leaves room for them
+                    AES.writeFully(file, ByteBuffer.wrap(tag(index, output, size)), tagPosition(index));
+                }
+                Metrics.record(Metrics.Phase.WRITE, start, size);
+                start = System.nanoTime();
+                file.force(false);
+                Metrics.record(Metrics.Phase.SYNC, start, size);
+            } finally {
+                BufferPool.release(current);
+                BufferPool.release(output);
+            }
+        }
+
+        // Reads every chunk as it was encrypted and checks it against its tag
+        private void verify() throws IOException, GeneralSecurityException {
+            long start = System.nanoTime();
+            byte[] data = BufferPool.array((int) Math.min(header.chunkSize, header.length));
+            try {
+                for (long index = 0; index < chunks; index++) {
+                    long offset = index * header.chunkSize;
+                    int size = (int) Math.min(header.chunkSize, header.length - offset);
+                    if (index == 0) {
+                        // The first bytes of the ciphertext were moved behind the rest
+                        int moved = fileHeader.size();
+                        AES.readFully(file, ByteBuffer.wrap(data, 0, moved), header.length);
+                        AES.readFully(file, ByteBuffer.wrap(data, moved, size - moved), moved);
+                    } else {
+                        AES.readFully(file, ByteBuffer.wrap(data, 0, size), offset);
+                    }
+                    byte[] expected = readBytes(tagPosition(index), AeadCipher.TAG_SIZE);
+                    if (!MessageDigest.isEqual(expected, tag(index, data, size))) {
+                        throw new InvalidFileException("Chunk " + index + " failed authentication, the file is corrupted");
+                    }
+                }
+            } finally {
+                BufferPool.release(data);
+            }
+            // Not counted as READ, the chunks are read again when they are decrypted
+            Metrics.record(Metrics.Phase.CIPHER, start, header.length);
+        }
+
+        private byte[] tag(long index, byte[] ciphertext, int size) throws GeneralSecurityException {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(macKey);
+            mac.update(bytes(fileHeader.toBuffer()));
+            mac.update(ByteBuffer.allocate(8).putLong(index).array());
+            mac.update(ciphertext, 0, size);
+            return Arrays.copyOf(mac.doFinal(), AeadCipher.TAG_SIZE);
+        }
+
+        private long tagPosition(long index) {
+            return header.length + fileHeader.size() + index * AeadCipher.TAG_SIZE;
+        }
+
+        private static SecretKeySpec macKey(SecretKeySpec key) throws GeneralSecurityException {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(key);
+            return new SecretKeySpec(mac.doFinal("aegis-in-place-mac".getBytes(StandardCharsets.UTF_8)), "HmacSHA256");
+        }
+
+        private void writeLiteral(long step, byte[] data, long position) throws IOException {
+            record(step, data);
+            AES.writeFully(file, ByteBuffer.wrap(data), position);
+            file.force(false);
+        }
+
+        private void truncate() throws IOException {
+            file.truncate(header.length);
+            file.force(false);
+        }
+
+        // Steps alternate between the two slots, so a torn write can only hit the slot of a step
+        // that hasn't touched the file yet
+        private void record(long step, byte[] payload) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(SLOT_SIZE);
+            buffer.putLong(step).putInt(payload.length).put(payload);
+            buffer.position(SLOT_SIZE - 8);
+            CRC32 crc = new CRC32();
+            crc.update(buffer.array(), 0, SLOT_SIZE - 8);
+            buffer.putLong(crc.getValue());
+            buffer.flip();
+            AES.writeFully(journal, buffer, slotsStart + (step % 2) * SLOT_SIZE);
+            journal.force(false);
+        }
+
+        private Slot latestSlot() throws IOException {
+            Slot latest = null;
+            for (int slot = 0; slot < 2; slot++) {
+                long position = slotsStart + (long) slot * SLOT_SIZE;
+                if (journal.size() < position + SLOT_SIZE) {
+                    continue;
+                }
+                ByteBuffer buffer = ByteBuffer.allocate(SLOT_SIZE);
+                AES.readFully(journal, buffer, position);
+                CRC32 crc = new CRC32();
+                crc.update(buffer.array(), 0, SLOT_SIZE - 8);
+                buffer.flip();
+                if (buffer.getLong(SLOT_SIZE - 8) != crc.getValue()) {
+                    continue;
+                }
+
+                long step = buffer.getLong();
+                int length = buffer.getInt();
+                if (length < 0 || length > MAX_PAYLOAD) {
+                    continue;
+                }
+                byte[] payload = new byte[length];
+                buffer.get(payload);
+                if (latest == null || step > latest.step) {
+                    latest = new Slot(step, payload);
+                }
+            }
+            return latest;
+        }
+
+        private byte[] readBytes(long position, int size) throws IOException {
+            byte[] data = new byte[size];
+            AES.readFully(file, ByteBuffer.wrap(data), position);
+            return data;
+        }
+
+        private static byte[] bytes(ByteBuffer buffer) {
+            byte[] data = new byte[buffer.remaining()];
+            buffer.get(data);
+            return data;
+        }
+
+        private static byte[] blockCrcs(byte[] data, int size) {
+            ByteBuffer crcs = ByteBuffer.allocate((size + BLOCK_SIZE - 1) / BLOCK_SIZE * 4);
+            for (int from = 0; from < size; from += BLOCK_SIZE) {
+                crcs.putInt(crc(data, from, Math.min(size, from + BLOCK_SIZE)));
+            }
+            return crcs.array();
+        }
+
+        private static int crc(byte[] data, int from, int to) {
+            CRC32 crc = new CRC32();
+            crc.update(data, from, to - from);
+            return (int) crc.getValue();
+        }
+    }
+
+    private static byte[] readMagic(FileChannel channel, long position) throws IOException {
+        ByteBuffer magic = ByteBuffer.allocate(FileHeader.MAGIC_SIZE);
+        AES.readFully(channel, magic, position);
+        return magic.array();
+    }
+
+    // The chunk fields shared with ParallelCipher plus, from version 2 on, what the key is derived from
+    private static class FileHeader {
+        static final int MAGIC_SIZE = MAGIC.length;
+
+        final ParallelCipher.Header chunks;
+        // Both null in version 1 headers
+        final KeyDerivation.Params kdf;
+        final byte[] salt;
+
+        FileHeader(ParallelCipher.Header chunks, KeyDerivation.Params kdf, byte[] salt) {
+            this.chunks = chunks;
+            this.kdf = kdf;
+            this.salt = salt;
+        }
+
+        // Size of a header with this magic, or -1 when it isn't an in-place header
+        static int size(byte[] magic) {
+            if (Arrays.equals(magic, MAGIC)) {
+                return HEADER_SIZE;
+            }
+            return Arrays.equals(magic, V1_MAGIC) ? V1_HEADER_SIZE : -1;
+        }
+
+        int size() {
+            return kdf == null ? V1_HEADER_SIZE : HEADER_SIZE;
+        }
+
+        // The chunk tags after the moved bytes, which version 1 files don't have
+        long tagsSize() {
+            return kdf == null ? 0 : chunks.chunkCount() * AeadCipher.TAG_SIZE;
+        }
+
+        // Returns null when the header is damaged or not an in-place header
+        static FileHeader read(FileChannel channel, long position) throws IOException {
+            int size = size(readMagic(channel, position));
+            if (size < 0 || channel.size() < position + size) {
+                return null;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(size);
+            AES.readFully(channel, buffer, position);
+            buffer.flip();
+            return parse(buffer);
+        }
+
+        // Returns null when the header is damaged or not an in-place header
+        static FileHeader parse(ByteBuffer buffer) {
+            byte[] magic = new byte[MAGIC_SIZE];
+            buffer.duplicate().get(magic);
+            int size = size(magic);
+            if (size < 0 || buffer.remaining() < size) {
+                return null;
+            }
+            ParallelCipher.Header chunks = ParallelCipher.Header.read(buffer);
+            if (chunks == null || size == V1_HEADER_SIZE) {
+                return chunks == null ? null : new FileHeader(chunks, null, null);
+            }
+            KeyDerivation.Params kdf = KeyDerivation.Params.read(buffer);
+            byte[] salt = new byte[AeadCipher.SALT_SIZE];
+            buffer.get(salt);
+            return kdf == null ? null : new FileHeader(chunks, kdf, salt);
+        }
+
+        ByteBuffer toBuffer() {
+            ByteBuffer buffer = ByteBuffer.allocate(size());
+            buffer.put(chunks.toBuffer(kdf == null ? V1_MAGIC : MAGIC));
+            if (kdf != null) {
+                kdf.write(buffer);
+                buffer.put(salt);
+            }
+            buffer.flip();
+            return buffer;
+        }
+
+        SecretKeySpec key(AES.Session session) throws GeneralSecurityException {
+            return kdf == null ? session.getKey() : session.fileKey(kdf, salt);
+        }
+    }
+
+    private static class Slot {
+        final long step;
+        final byte[] payload;
+
+        Slot(long step, byte[] payload) {
+            this.step = step;
+            this.payload = payload;
+        }
+    }
+
+    private static class InvalidFileException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        InvalidFileException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,164 @@
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Turns the password into the master key of the authenticated format. New files use PBKDF2-HMAC-SHA256
+ * with a cost set by -Daegis.kdfIterations=<n> (default 600000), the strongest password hash the JDK ships;
+ * scrypt and Argon2 would need a third party library, and the algorithm id in the header leaves room for them.
+ *
+ * Master keys are cached by their parameters for as long as this object lives. A Session owns one per batch
+ * and password, so the thousands of files that share a batch salt pay for the derivation once.
+ */
+class KeyDerivation {
+    enum Algorithm {
+        // Single SHA-256 of the password, only found in files of the first authenticated format
+        SHA256(0),
+        PBKDF2_SHA256(1);
+
+        final byte id;
+
+        Algorithm(int id) {
+            this.id = (byte) id;
+        }
+
+        static Algorithm fromId(byte id) {
+            for (Algorithm algorithm : values()) {
+                if (algorithm.id == id) {
+                    return algorithm;
+                }
+            }
+            return null;
+        }
+    }
+
+    static final int SALT_SIZE = 16;
+    // Algorithm (1) | iterations (4) | salt (16)
+    static final int PARAMS_SIZE = 1 + 4 + SALT_SIZE;
+
+    // Bounds on what a header may ask for, so a damaged or crafted file can't stall a batch. The upper one is ten
+    // times the default, a few seconds per file at most; the configured cost is held to it too, or its files
+    // couldn't be read back
+    private static final int MIN_ITERATIONS = 1000;
+    private static final int MAX_ITERATIONS = 6000000;
+
+    static final int DEFAULT_ITERATIONS = Math.min(MAX_ITERATIONS,
+            Math.max(MIN_ITERATIONS, Integer.getInteger("aegis.kdfIterations", 600000)));
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    // What a master key is derived with. Stored in every file header, and the cache key
+    static final class Params {
+        final Algorithm algorithm;
+        final int iterations;
+        final byte[] salt;
+
+        Params(Algorithm algorithm, int iterations, byte[] salt) {
+            this.algorithm = algorithm;
+            this.iterations = iterations;
+            this.salt = salt;
+        }
+
+        // Fresh salt with the configured cost, shared by every file of one batch
+        static Params create() {
+            byte[] salt = new byte[SALT_SIZE];
+            RANDOM.nextBytes(salt);
+            return new Params(Algorithm.PBKDF2_SHA256, DEFAULT_ITERATIONS, salt);
+        }
+
+        // Returns null when the fields are out of range, which means the file is damaged
+        static Params read(ByteBuffer buffer) {
+            Algorithm algorithm = Algorithm.fromId(buffer.get());
+            int iterations = buffer.getInt();
+            byte[] salt = new byte[SALT_SIZE];
+            buffer.get(salt);
+            if (algorithm != Algorithm.PBKDF2_SHA256 || iterations < MIN_ITERATIONS || iterations > MAX_ITERATIONS) {
+                return null;
+            }
+            return new Params(algorithm, iterations, salt);
+        }
+
+        void write(ByteBuffer buffer) {
+            buffer.put(algorithm.id).putInt(iterations).put(salt);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Params)) {
+                return false;
+            }
+            Params other = (Params) o;
+            return algorithm == other.algorithm && iterations == other.iterations && Arrays.equals(salt, other.salt);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * algorithm.hashCode() + iterations) + Arrays.hashCode(salt);
+        }
+    }
+
+    static final Params SHA256 = new Params(Algorithm.SHA256, 0, new byte[0]);
+
+    private final char[] password;
+    private final Map<Params, FutureTask<SecretKeySpec>> cache = new ConcurrentHashMap<>();
+
+    KeyDerivation(String password) {
+        this.password = password.toCharArray();
+    }
+
+    // Workers that need the same key at once wait for a single derivation instead of each running their own
+    SecretKeySpec masterKey(Params params) throws GeneralSecurityException {
+        FutureTask<SecretKeySpec> task = new FutureTask<>(() -> derive(params));
+        FutureTask<SecretKeySpec> existing = cache.putIfAbsent(params, task);
+        if (existing == null) {
+            existing = task;
+            task.run();
+        }
+
+        try {
+            return existing.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GeneralSecurityException("Interrupted while deriving the key", e);
+        } catch (ExecutionException e) {
+            // Let a later file try again rather than failing every file on one bad attempt
+            cache.remove(params, existing);
+            if (e.getCause() instanceof GeneralSecurityException) {
+                throw (GeneralSecurityException) e.getCause();
+            }
+            throw new GeneralSecurityException("Could not derive the key: " + e.getCause(), e.getCause());
+        }
+    }
+
+    private SecretKeySpec derive(Params params) throws GeneralSecurityException {
+        if (params.algorithm == Algorithm.SHA256) {
+            ByteBuffer bytes = StandardCharsets.UTF_8.encode(CharBuffer.wrap(password));
+            byte[] encoded = new byte[bytes.remaining()];
+            bytes.get(encoded);
+            try {
+                return new SecretKeySpec(MessageDigest.getInstance("SHA-256").digest(encoded), "HmacSHA256");
+            } finally {
+                Arrays.fill(encoded, (byte) 0);
+            }
+        }
+
+        PBEKeySpec spec = new PBEKeySpec(password, params.salt, params.iterations, 256);
+        try {
+            byte[] key = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+            return new SecretKeySpec(key, "HmacSHA256");
+        } finally {
+            spec.clearPassword();
+        }
+    }
+}
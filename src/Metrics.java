@@ -0,0 +1,369 @@
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Where batches spend their time. Each step of each file adds its time and bytes to app wide counters,
+ * cheap enough to be always on:
+ *   read, cipher, write  the chunks of a file, on whichever thread handles them
+ *   compress             deflating or inflating the chunks of compressed files
+ *   sync                 forcing an output to disk before the journal lets its original be wiped
+ *   wipe                 overwriting the original
+ *   rename               deleting the original and moving the output into its place
+ * The time from a worker picking a file up to its original being replaced goes into a histogram of
+ * power-of-two millisecond buckets. Counters only ever grow, so a batch takes a Snapshot when it starts and
+ * one when it ends, and the difference is its summary.
+ *
+ * The counters, queue depths and the summary of the last batch are published over JMX as aegis:type=Metrics
+ * for jconsole or Mission Control. JFR events would need jdk.jfr, which Java 8 doesn't have.
+ */
+public final class Metrics {
+    public enum Phase { READ, COMPRESS, CIPHER, WRITE, SYNC, WIPE, RENAME }
+
+    // Bucket i holds files that took under 2^i ms, the last one everything slower
+    private static final int LATENCY_BUCKETS = 32;
+
+    private static final Phase[] PHASES = Phase.values();
+    private static final LongAdder[] NANOS = adders(PHASES.length);
+    private static final LongAdder[] BYTES = adders(PHASES.length);
+    private static final LongAdder[] LATENCIES = adders(LATENCY_BUCKETS);
+    private static final LongAdder FILES = new LongAdder();
+    private static final LongAdder FAILURES = new LongAdder();
+
+    // Files waiting for a batch worker, and originals waiting for a wipe thread
+    static final Gauge QUEUED_FILES = new Gauge();
+    static final Gauge QUEUED_WIPES = new Gauge();
+
+    private static volatile Snapshot lastBatch;
+
+    static {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new Bean(), new ObjectName("aegis:type=Metrics"));
+        } catch (JMException | SecurityException e) {
+            System.err.println("Warning: Could not publish metrics over JMX: " + e.getMessage());
+        }
+    }
+
+    private Metrics() {
+    }
+
+    // Adds the time since startNanos, a System.nanoTime() taken when the step began
+    static void record(Phase phase, long startNanos, long bytes) {
+        NANOS[phase.ordinal()].add(System.nanoTime() - startNanos);
+        BYTES[phase.ordinal()].add(bytes);
+    }
+
+    static void fileFinished(long startNanos, boolean isSuccess) {
+        long millis = (System.nanoTime() - startNanos) / 1_000_000;
+        LATENCIES[Math.min(LATENCY_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(millis))].increment();
+        FILES.increment();
+        if (!isSuccess) {
+            FAILURES.increment();
+        }
+    }
+
+    public static Snapshot snapshot() {
+        return new Snapshot(System.nanoTime(), sums(NANOS), sums(BYTES), sums(LATENCIES), FILES.sum(),
+                FAILURES.sum(), QUEUED_FILES.peak(), QUEUED_WIPES.peak());
+    }
+
+    // Called by BatchProcessor when a batch ends, for the MBean
+    static void batchFinished(Snapshot batch) {
+        lastBatch = batch;
+    }
+
+    private static LongAdder[] adders(int count) {
+        LongAdder[] adders = new LongAdder[count];
+        for (int i = 0; i < count; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    private static long[] sums(LongAdder[] adders) {
+        long[] sums = new long[adders.length];
+        for (int i = 0; i < adders.length; i++) {
+            sums[i] = adders[i].sum();
+        }
+        return sums;
+    }
+
+    // Current length of a queue and the longest it got since the last reset
+    static final class Gauge {
+        private final AtomicInteger current = new AtomicInteger();
+        private final AtomicInteger peak = new AtomicInteger();
+
+        void increment() {
+            int value = current.incrementAndGet();
+            peak.accumulateAndGet(value, Math::max);
+        }
+
+        void decrement() {
+            current.decrementAndGet();
+        }
+
+        int current() {
+            return current.get();
+        }
+
+        int peak() {
+            return peak.get();
+        }
+
+        void resetPeak() {
+            peak.set(current.get());
+        }
+    }
+
+    // Totals at one point in time, or over a batch once taken since an earlier snapshot
+    public static final class Snapshot {
+        private final long time;
+        private final long[] nanos;
+        private final long[] bytes;
+        private final long[] latencies;
+        private final long files;
+        private final long failures;
+        private final int peakQueuedFiles;
+        private final int peakQueuedWipes;
+
+        private Snapshot(long time, long[] nanos, long[] bytes, long[] latencies, long files, long failures,
+                         int peakQueuedFiles, int peakQueuedWipes) {
+            this.time = time;
+            this.nanos = nanos;
+            this.bytes = bytes;
+            this.latencies = latencies;
+            this.files = files;
+            this.failures = failures;
+            this.peakQueuedFiles = peakQueuedFiles;
+            this.peakQueuedWipes = peakQueuedWipes;
+        }
+
+        // What happened between the earlier snapshot and this one; the peaks are those of this one
+        public Snapshot since(Snapshot earlier) {
+            return new Snapshot(time - earlier.time, minus(nanos, earlier.nanos), minus(bytes, earlier.bytes),
+                    minus(latencies, earlier.latencies), files - earlier.files, failures - earlier.failures,
+                    peakQueuedFiles, peakQueuedWipes);
+        }
+
+        private static long[] minus(long[] values, long[] earlier) {
+            long[] difference = new long[values.length];
+            for (int i = 0; i < values.length; i++) {
+                difference[i] = values[i] - earlier[i];
+            }
+            return difference;
+        }
+
+        public long elapsedMillis() {
+            return time / 1_000_000;
+        }
+
+        // Summed over every thread, so phases running side by side can add up to more than the elapsed time
+        public long millis(Phase phase) {
+            return nanos[phase.ordinal()] / 1_000_000;
+        }
+
+        public long bytes(Phase phase) {
+            return bytes[phase.ordinal()];
+        }
+
+        public long files() {
+            return files;
+        }
+
+        public long failures() {
+            return failures;
+        }
+
+        // Bytes read per second of the whole batch
+        public double megabytesPerSecond() {
+            return time <= 0 ? 0 : bytes(Phase.READ) / (1024.0 * 1024) / (time / 1e9);
+        }
+
+        // Upper bound of the bucket holding the given fraction of files, 0 without any files
+        public long latencyMillis(double fraction) {
+            long target = (long) Math.ceil(fraction * files);
+            long seen = 0;
+            for (int i = 0; i < latencies.length; i++) {
+                seen += latencies[i];
+                if (seen >= target && seen > 0) {
+                    return 1L << i;
+                }
+            }
+            return 0;
+        }
+
+        // One line for people, e.g. at the end of a command line run
+        public String describe() {
+            StringBuilder text = new StringBuilder();
+            for (Phase phase : PHASES) {
+                text.append(text.length() == 0 ? "" : ", ").append(name(phase))
+                        .append(String.format(Locale.ROOT, " %.1f s", millis(phase) / 1000.0));
+            }
+            return String.format(Locale.ROOT, "%s; %.1f MB/s, half the files took under %d ms, 99%% under %d ms",
+                    text, megabytesPerSecond(), latencyMillis(0.5), latencyMillis(0.99));
+        }
+
+        public String toJson() {
+            StringBuilder json = new StringBuilder("{");
+            json.append("\"elapsedMillis\":").append(elapsedMillis())
+                    .append(",\"files\":").append(files)
+                    .append(",\"failed\":").append(failures)
+                    .append(",\"megabytesPerSecond\":").append(String.format(Locale.ROOT, "%.2f", megabytesPerSecond()))
+                    .append(",\"phases\":{");
+            for (Phase phase : PHASES) {
+                json.append(phase.ordinal() == 0 ? "" : ",").append('"').append(name(phase)).append("\":{")
+                        .append("\"millis\":").append(millis(phase))
+                        .append(",\"bytes\":").append(bytes(phase)).append('}');
+            }
+            json.append("},\"latencyMillis\":{")
+                    .append("\"p50\":").append(latencyMillis(0.5))
+                    .append(",\"p90\":").append(latencyMillis(0.9))
+                    .append(",\"p99\":").append(latencyMillis(0.99))
+                    .append(",\"max\":").append(latencyMillis(1))
+                    .append("},\"latencyHistogram\":{");
+            boolean first = true;
+            for (int i = 0; i < latencies.length; i++) {
+                if (latencies[i] > 0) {
+                    json.append(first ? "" : ",").append("\"under").append(1L << i).append("ms\":").append(latencies[i]);
+                    first = false;
+                }
+            }
+            json.append("},\"peakQueuedFiles\":").append(peakQueuedFiles)
+                    .append(",\"peakQueuedWipes\":").append(peakQueuedWipes)
+                    .append('}');
+            return json.toString();
+        }
+
+        private static String name(Phase phase) {
+            return phase.name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    // Speed and time left of a running batch, from the bytes read so far. Skipped files count as done
+    // straight away, since nothing of them is read
+    public static final class Progress {
+        // Weight of the newest measurement, so the speed follows changes within a few seconds without jumping
+        private static final double SMOOTHING = 0.3;
+
+        private final Snapshot start = snapshot();
+        private final LongAdder skipped = new LongAdder();
+        private volatile long total;
+        private long lastTime = start.time;
+        private long lastDone;
+        private double bytesPerSecond = -1;
+
+        public void setTotalBytes(long total) {
+            this.total = total;
+        }
+
+        public void skipped(long bytes) {
+            skipped.add(bytes);
+        }
+
+        // Meant to be called about once a second from one thread. Returns null until there is a first measurement
+        public synchronized String describe() {
+            long now = System.nanoTime();
+            if (now - lastTime < 100_000_000L) {
+                return null;
+            }
+            long done = BYTES[Phase.READ.ordinal()].sum() - start.bytes(Phase.READ) + skipped.sum();
+            double current = (done - lastDone) / ((now - lastTime) / 1e9);
+            bytesPerSecond = bytesPerSecond < 0 ? current : SMOOTHING * current + (1 - SMOOTHING) * bytesPerSecond;
+            lastTime = now;
+            lastDone = done;
+
+            String speed = String.format(Locale.ROOT, "%.1f MB/s", bytesPerSecond / (1024 * 1024));
+            long left = Math.max(0, total - done);
+            if (total == 0 || bytesPerSecond < 1) {
+                return speed;
+            }
+            return speed + ", " + timeLeft((long) Math.ceil(left / bytesPerSecond));
+        }
+
+        private static String timeLeft(long seconds) {
+            if (seconds < 60) {
+                return "less than a minute left";
+            }
+            if (seconds < 3600) {
+                long minutes = (seconds + 59) / 60;
+                return "about " + minutes + " minute" + (minutes == 1 ? "" : "s") + " left";
+            }
+            return String.format(Locale.ROOT, "about %d h %02d min left", seconds / 3600, seconds % 3600 / 60);
+        }
+    }
+
+    public interface MetricsMXBean {
+        Map<String, Long> getPhaseMillis();
+        Map<String, Long> getPhaseBytes();
+        long getFilesProcessed();
+        long getFilesFailed();
+        long getLatencyMedianMillis();
+        long getLatency99thPercentileMillis();
+        int getQueuedFiles();
+        int getQueuedWipes();
+        String getLastBatchSummary();
+    }
+
+    private static final class Bean implements MetricsMXBean {
+        @Override
+        public Map<String, Long> getPhaseMillis() {
+            Snapshot now = snapshot();
+            Map<String, Long> millis = new LinkedHashMap<>();
+            for (Phase phase : PHASES) {
+                millis.put(Snapshot.name(phase), now.millis(phase));
+            }
+            return millis;
+        }
+
+        @Override
+        public Map<String, Long> getPhaseBytes() {
+            Snapshot now = snapshot();
+            Map<String, Long> bytes = new LinkedHashMap<>();
+            for (Phase phase : PHASES) {
+                bytes.put(Snapshot.name(phase), now.bytes(phase));
+            }
+            return bytes;
+        }
+
+        @Override
+        public long getFilesProcessed() {
+            return FILES.sum();
+        }
+
+        @Override
+        public long getFilesFailed() {
+            return FAILURES.sum();
+        }
+
+        @Override
+        public long getLatencyMedianMillis() {
+            return snapshot().latencyMillis(0.5);
+        }
+
+        @Override
+        public long getLatency99thPercentileMillis() {
+            return snapshot().latencyMillis(0.99);
+        }
+
+        @Override
+        public int getQueuedFiles() {
+            return QUEUED_FILES.current();
+        }
+
+        @Override
+        public int getQueuedWipes() {
+            return QUEUED_WIPES.current();
+        }
+
+        @Override
+        public String getLastBatchSummary() {
+            Snapshot batch = lastBatch;
+            return batch == null ? "" : batch.toJson();
+        }
+    }
+}
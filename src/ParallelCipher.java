@@ -0,0 +1,244 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.RecursiveAction;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Seekable container that older versions used for large files. Every chunk is encrypted on its own with
+ * AES-CTR, starting from a counter derived from the chunk index, so chunks can be handled by any thread in
+ * any order. New files use AeadCipher instead, this is only kept to decrypt existing files.
+ *
+ * Layout: magic (8) | chunk size (4) | nonce (8) | plaintext length (8) | key check (16) | chunks...
+ */
+public class ParallelCipher {
+    private static final byte[] MAGIC = FileFormat.CHUNKED_CTR.magic();
+    private static final int KEY_CHECK_SIZE = 16;
+    static final int HEADER_SIZE = MAGIC.length + 4 + 8 + 8 + KEY_CHECK_SIZE;
+
+    static final int CHUNK_SIZE = 4 * 1024 * 1024;
+    private static final int MAX_CHUNK_SIZE = 64 * 1024 * 1024;
+    private static final int BLOCK_SIZE = 16;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    // One cipher per pool thread, reused for every chunk that thread handles. Chunk buffers come from the BufferPool
+    private static final ThreadLocal<Cipher> CIPHERS = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance("AES/CTR/NoPadding");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("AES/CTR is not available", e);
+        }
+    });
+
+    public static AES.ProcessingResult decrypt(File original, File aegisFile, SecretKeySpec key,
+                                               Cancellation cancellation) {
+        try (FileChannel in = FileChannel.open(original.toPath(), StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(aegisFile.toPath(), StandardOpenOption.WRITE,
+                     StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+
+            ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE);
+            AES.readFully(in, buffer, 0);
+            buffer.flip();
+            Header header = Header.read(buffer);
+
+            if (header == null || in.size() != HEADER_SIZE + header.length) {
+                return new AES.ProcessingResult(false, AES.ProcessingError.DECRYPTION_ERROR,
+                        "Invalid or truncated file header");
+            }
+            if (!header.matches(key)) {
+                return new AES.ProcessingResult(false, AES.ProcessingError.INVALID_KEY,
+                        "The password does not match this file");
+            }
+
+            Scheduler.cpu().invoke(new ChunkTask(in, HEADER_SIZE, out, 0, header, key, cancellation, 0, header.chunkCount()));
+            return new AES.ProcessingResult(true, AES.ProcessingError.NONE, "");
+
+        } catch (CancellationException e) {
+            return new AES.ProcessingResult(false, AES.ProcessingError.NONE, "Operation cancelled by user");
+        } catch (UncheckedIOException e) {
+            return new AES.ProcessingResult(false, AES.ProcessingError.FILE_ACCESS_ERROR, e.getMessage());
+        } catch (IOException e) {
+            return new AES.ProcessingResult(false, AES.ProcessingError.FILE_ACCESS_ERROR,
+                    "Could not open file: " + e.getMessage());
+        } catch (ChunkCipherException e) {
+            return new AES.ProcessingResult(false, AES.ProcessingError.DECRYPTION_ERROR, e.getMessage());
+        } catch (GeneralSecurityException e) {
+            return new AES.ProcessingResult(false, AES.ProcessingError.INVALID_KEY, e.getMessage());
+        }
+    }
+
+    // Runs a range of plaintext or ciphertext through the CTR keystream in place. The offset is the
+    // position of the data within the file and must fall on an AES block boundary; its counter block is
+    // nonce || offset / 16, so counters never overlap between chunks
+    static void applyKeystream(SecretKeySpec key, byte[] nonce, long offset, byte[] buffer, int size)
+            throws GeneralSecurityException {
+        byte[] counter = ByteBuffer.allocate(BLOCK_SIZE).put(nonce).putLong(offset / BLOCK_SIZE).array();
+        Cipher cipher = CIPHERS.get();
+        cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(counter));
+        cipher.doFinal(buffer, 0, size, buffer, 0);
+    }
+
+    // Fields shared by the chunked formats, stored right after the magic
+    static class Header {
+        final int chunkSize;
+        final byte[] nonce;
+        final long length;
+        final byte[] keyCheck;
+
+        private Header(int chunkSize, byte[] nonce, long length, byte[] keyCheck) {
+            this.chunkSize = chunkSize;
+            this.nonce = nonce;
+            this.length = length;
+            this.keyCheck = keyCheck;
+        }
+
+        static Header create(SecretKeySpec key, long length) throws GeneralSecurityException {
+            byte[] nonce = new byte[8];
+            RANDOM.nextBytes(nonce);
+            return new Header(CHUNK_SIZE, nonce, length, keyCheck(key, nonce));
+        }
+
+        // Returns null when the fields are out of range, which means the file is damaged
+        static Header read(ByteBuffer buffer) {
+            buffer.position(MAGIC.length);
+            int chunkSize = buffer.getInt();
+            byte[] nonce = new byte[8];
+            buffer.get(nonce);
+            long length = buffer.getLong();
+            byte[] keyCheck = new byte[KEY_CHECK_SIZE];
+            buffer.get(keyCheck);
+
+            if (chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE || chunkSize % BLOCK_SIZE != 0 || length < 0) {
+                return null;
+            }
+            return new Header(chunkSize, nonce, length, keyCheck);
+        }
+
+        ByteBuffer toBuffer(byte[] magic) {
+            ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE);
+            buffer.put(magic).putInt(chunkSize).put(nonce).putLong(length).put(keyCheck);
+            buffer.flip();
+            return buffer;
+        }
+
+        boolean matches(SecretKeySpec key) throws GeneralSecurityException {
+            return MessageDigest.isEqual(keyCheck, keyCheck(key, nonce));
+        }
+
+        long chunkCount() {
+            return (length + chunkSize - 1) / chunkSize;
+        }
+
+        // Lets decryption reject a wrong password before any output is written, without revealing keystream
+        private static byte[] keyCheck(SecretKeySpec key, byte[] nonce) throws GeneralSecurityException {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(key);
+            mac.update("aegis-key-check".getBytes(StandardCharsets.UTF_8));
+            return Arrays.copyOf(mac.doFinal(nonce), KEY_CHECK_SIZE);
+        }
+    }
+
+    // Splits a range of chunks in half until a single chunk is left, which is then read, run through
+    // the CTR keystream and written back at its own offset
+    private static class ChunkTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final FileChannel in;
+        private final long inBase;
+        private final FileChannel out;
+        private final long outBase;
+        private final Header header;
+        private final SecretKeySpec key;
+        private final Cancellation cancellation;
+        private final long first;
+        private final long last;
+
+        ChunkTask(FileChannel in, long inBase, FileChannel out, long outBase, Header header,
+                  SecretKeySpec key, Cancellation cancellation, long first, long last) {
+            this.in = in;
+            this.inBase = inBase;
+            this.out = out;
+            this.outBase = outBase;
+            this.header = header;
+            this.key = key;
+            this.cancellation = cancellation;
+            this.first = first;
+            this.last = last;
+        }
+
+        @Override
+        protected void compute() {
+            if (last - first > 1) {
+                long middle = first + (last - first) / 2;
+                invokeAll(split(first, middle), split(middle, last));
+                return;
+            }
+            if (last > first) {
+                processChunk(first);
+            }
+        }
+
+        private ChunkTask split(long from, long to) {
+            return new ChunkTask(in, inBase, out, outBase, header, key, cancellation, from, to);
+        }
+
+        private void processChunk(long index) {
+            if (cancellation.isCancelled()) {
+                throw new CancellationException();
+            }
+
+            int chunkSize = header.chunkSize;
+            long offset = index * chunkSize;
+            int size = (int) Math.min(chunkSize, header.length - offset);
+            byte[] buffer = BufferPool.array(chunkSize);
+            try {
+                long start = System.nanoTime();
+                try {
+                    AES.readFully(in, ByteBuffer.wrap(buffer, 0, size), inBase + offset);
+                    Metrics.record(Metrics.Phase.READ, start, size);
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Could not read file: " + e.getMessage(), e);
+                }
+
+                start = System.nanoTime();
+                try {
+                    applyKeystream(key, header.nonce, offset, buffer, size);
+                    Metrics.record(Metrics.Phase.CIPHER, start, size);
+                } catch (GeneralSecurityException e) {
+                    throw new ChunkCipherException("Chunk " + index + ": " + e.getMessage(), e);
+                }
+
+                start = System.nanoTime();
+                try {
+                    AES.writeFully(out, ByteBuffer.wrap(buffer, 0, size), outBase + offset);
+                    Metrics.record(Metrics.Phase.WRITE, start, size);
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Could not write output file: " + e.getMessage(), e);
+                }
+            } finally {
+                BufferPool.release(buffer);
+            }
+        }
+    }
+
+    private static class ChunkCipherException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        ChunkCipherException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+}
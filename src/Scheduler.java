@@ -0,0 +1,173 @@
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Background threads shared by the whole app, so bursts of drag-drops and preview clicks queue up on a few
+ * threads instead of each starting one of their own and fighting over the disk:
+ *   io      disk bound work such as imports, checksums and running a batch, -Daegis.ioThreads=<n> (default 4)
+ *   cpu     the fork/join pool the ciphers split large files over, one thread per core
+ *   walk    the fork/join pool directory trees are listed on; listing mostly waits on the disk, so it has
+ *           more threads than cores and is kept apart from cpu, where it would stall the ciphers
+ *   uiFeed  a single thread for the small lookups that fill in what a dialog shows
+ *   stages  the read-ahead and write-behind threads of file pipelines, which only ever wait on a file or
+ *           on the thread that started them; two per file in flight, so bounded by the batch parallelism
+ *   batch   the worker and wipe pools of one batch, sized by its parallelism and shut down when it ends
+ * The io and uiFeed queues are ordered by priority, so a preview the user is waiting for starts before
+ * bulk work that was queued earlier, and io never runs bulk work on all of its threads at once, so a
+ * preview doesn't have to wait for a long import or batch either. Virtual threads would need Java 21,
+ * the app still runs on Java 8.
+ */
+public final class Scheduler {
+    public enum Priority { INTERACTIVE, BULK }
+
+    public static final int IO_THREADS = Math.max(1, Integer.getInteger("aegis.ioThreads", 4));
+
+    private static final Lane IO = new Lane("aegis-io", IO_THREADS);
+    private static final Lane UI_FEED = new Lane("aegis-ui-feed", 1);
+    private static final ForkJoinPool CPU = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    private static final ForkJoinPool WALK = new ForkJoinPool(Math.max(4, Runtime.getRuntime().availableProcessors() * 2));
+    // Not bounded on its own: a stage waiting for a thread would stall the file that needs it
+    private static final ExecutorService STAGES = Executors.newCachedThreadPool(daemonThreads("aegis-stage"));
+
+    private Scheduler() {
+    }
+
+    public static Executor io(Priority priority) {
+        return runnable -> IO.execute(priority, runnable);
+    }
+
+    public static Executor uiFeed(Priority priority) {
+        return runnable -> UI_FEED.execute(priority, runnable);
+    }
+
+    public static ForkJoinPool cpu() {
+        return CPU;
+    }
+
+    static ForkJoinPool walk() {
+        return WALK;
+    }
+
+    static Executor stages() {
+        return STAGES;
+    }
+
+    // A pool of its own for one batch. The queue is capped so large batches don't pile up tasks in memory,
+    // and submitting blocks until a thread frees up a slot
+    static ExecutorService batch(String name, int threads) {
+        ThreadFactory factory = daemonThreads(name);
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(threads * 4),
+                runnable -> {
+                    Thread thread = factory.newThread(runnable);
+                    // Just below the shared threads, so a preview stays responsive while a batch runs
+                    thread.setPriority(Thread.NORM_PRIORITY - 1);
+                    return thread;
+                },
+                (runnable, executor) -> {
+                    try {
+                        executor.getQueue().put(runnable);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new RejectedExecutionException("Batch was cancelled", e);
+                    }
+                });
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        AtomicInteger threadCount = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    // Fixed number of daemon threads taking work by priority, first come first served within one priority.
+    // Bulk work waits in a queue of its own and at most all threads but one get some, so with more than one
+    // thread there is always one left for interactive work
+    private static final class Lane {
+        private final ThreadPoolExecutor pool;
+        private final AtomicLong sequence = new AtomicLong();
+        private final int maxBulk;
+        // Both guarded by this lane
+        private final Queue<Prioritized> waitingBulk = new ArrayDeque<>();
+        private int runningBulk;
+
+        Lane(String name, int threads) {
+            this.pool = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                    new PriorityBlockingQueue<>(), daemonThreads(name));
+            this.maxBulk = Math.max(1, threads - 1);
+        }
+
+        void execute(Priority priority, Runnable runnable) {
+            Prioritized task = new Prioritized(priority, sequence.getAndIncrement(), runnable);
+            if (priority == Priority.INTERACTIVE) {
+                pool.execute(task);
+                return;
+            }
+            synchronized (this) {
+                waitingBulk.add(task);
+            }
+            startBulk();
+        }
+
+        private void startBulk() {
+            synchronized (this) {
+                while (runningBulk < maxBulk && !waitingBulk.isEmpty()) {
+                    Prioritized task = waitingBulk.poll();
+                    runningBulk++;
+                    pool.execute(new Prioritized(task.priority, task.sequence, () -> {
+                        try {
+                            task.run();
+                        } finally {
+                            bulkFinished();
+                        }
+                    }));
+                }
+            }
+        }
+
+        private void bulkFinished() {
+            synchronized (this) {
+                runningBulk--;
+            }
+            startBulk();
+        }
+    }
+
+    private static final class Prioritized implements Runnable, Comparable<Prioritized> {
+        private final Priority priority;
+        private final long sequence;
+        private final Runnable runnable;
+
+        Prioritized(Priority priority, long sequence, Runnable runnable) {
+            this.priority = priority;
+            this.sequence = sequence;
+            this.runnable = runnable;
+        }
+
+        @Override
+        public void run() {
+            runnable.run();
+        }
+
+        @Override
+        public int compareTo(Prioritized other) {
+            int byPriority = priority.compareTo(other.priority);
+            return byPriority != 0 ? byPriority : Long.compare(sequence, other.sequence);
+        }
+    }
+}
@@ -0,0 +1,119 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import javax.crypto.Cipher;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Overwrites file contents in place before a file is deleted. The passes are configurable with
+ * -Daegis.wipe=<pass>,<pass>,... where each pass is "zero" or "random", e.g. "zero,random" for the
+ * old two pass behaviour. The default is a single random pass.
+ */
+public class SecureWipe {
+    public enum Pass { ZERO, RANDOM }
+
+    // Large and a multiple of the 4 KB block size, so every write starts on a block boundary
+    private static final int BUFFER_SIZE = 4 * 1024 * 1024;
+
+    // Direct buffers start out zeroed and this one is never written to, so threads can share it
+    private static final ByteBuffer ZEROS = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    // Random passes use an AES-CTR keystream under a throwaway key, which is far faster than
+    // drawing every byte from SecureRandom
+    private static final SecureRandom SEED = new SecureRandom();
+    private static final ThreadLocal<Cipher> KEYSTREAMS = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance("AES/CTR/NoPadding");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("AES/CTR is not available", e);
+        }
+    });
+
+    public static final SecureWipe DEFAULT = fromProperty(System.getProperty("aegis.wipe", "random"));
+
+    private final List<Pass> passes;
+
+    public SecureWipe(List<Pass> passes) {
+        if (passes.isEmpty()) {
+            throw new IllegalArgumentException("At least one wipe pass is required");
+        }
+        this.passes = Collections.unmodifiableList(new ArrayList<>(passes));
+    }
+
+    public List<Pass> getPasses() { return passes; }
+
+    static SecureWipe fromProperty(String value) {
+        List<Pass> passes = new ArrayList<>();
+        try {
+            for (String pass : value.split(",")) {
+                passes.add(Pass.valueOf(pass.trim().toUpperCase(Locale.ROOT)));
+            }
+            return new SecureWipe(passes);
+        } catch (IllegalArgumentException e) {
+            System.err.println("Warning: Invalid wipe passes \"" + value + "\", using a single random pass");
+            return new SecureWipe(Collections.singletonList(Pass.RANDOM));
+        }
+    }
+
+    // Runs every pass over the whole channel, forcing each one to disk so it isn't just absorbed
+    // by the page cache
+    public void wipe(FileChannel channel) throws IOException {
+        long length = channel.size();
+        for (Pass pass : passes) {
+            if (pass == Pass.RANDOM) {
+                overwriteRandom(channel, length);
+            } else {
+                overwriteZeros(channel, length);
+            }
+            channel.force(false);
+        }
+    }
+
+    private void overwriteZeros(FileChannel channel, long length) throws IOException {
+        for (long position = 0; position < length; ) {
+            ByteBuffer zeros = ZEROS.duplicate();
+            zeros.limit((int) Math.min(BUFFER_SIZE, length - position));
+            AES.writeFully(channel, zeros, position);
+            position += zeros.limit();
+        }
+    }
+
+    private void overwriteRandom(FileChannel channel, long length) throws IOException {
+        Cipher keystream = KEYSTREAMS.get();
+        byte[] seed = new byte[32];
+        SEED.nextBytes(seed);
+        try {
+            keystream.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(seed, 0, 16, "AES"),
+                    new IvParameterSpec(seed, 16, 16));
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Could not set up random wipe: " + e.getMessage(), e);
+        }
+
+        ByteBuffer buffer = BufferPool.direct(BUFFER_SIZE);
+        try {
+            for (long position = 0; position < length; ) {
+                ByteBuffer zeros = ZEROS.duplicate();
+                zeros.limit((int) Math.min(BUFFER_SIZE, length - position));
+                buffer.clear();
+                try {
+                    keystream.update(zeros, buffer);
+                } catch (ShortBufferException e) {
+                    throw new IOException("Could not generate random data: " + e.getMessage(), e);
+                }
+                buffer.flip();
+                AES.writeFully(channel, buffer, position);
+                position += buffer.limit();
+            }
+        } finally {
+            BufferPool.release(buffer);
+        }
+    }
+}
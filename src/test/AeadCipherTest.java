@@ -0,0 +1,137 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.util.Random;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+
+class AeadCipherTest {
+    // Offset of the compression byte in the header, right after the magic and the algorithm
+    private static final int COMPRESSION_OFFSET = 9;
+
+    private static AES.Session encryption;
+    private static AES.Session decryption;
+
+    @TempDir
+    File dir;
+
+    @BeforeAll
+    static void createSessions() throws GeneralSecurityException {
+        encryption = new AES.Session("correct horse", true);
+        decryption = new AES.Session("correct horse", false);
+    }
+
+    // Sizes around the chunk boundary, each sealed on the calling thread and spread over the pool
+    static Stream<Arguments> roundTrips() {
+        int chunk = AeadCipher.CHUNK_SIZE;
+        Stream.Builder<Arguments> cases = Stream.builder();
+        for (AeadCipher.Compression compression : AeadCipher.Compression.values()) {
+            for (int size : new int[]{0, 1, chunk, chunk + 1}) {
+                for (long parallelThreshold : new long[]{Long.MAX_VALUE, 0}) {
+                    cases.add(Arguments.of(compression, size, parallelThreshold));
+                }
+            }
+        }
+        return cases.build();
+    }
+
+    @ParameterizedTest
+    @MethodSource("roundTrips")
+    void roundTrip(AeadCipher.Compression compression, int size, long parallelThreshold) throws IOException {
+        byte[] data = text(size);
+        File original = write("original", data);
+        File encrypted = new File(dir, "encrypted");
+        File decrypted = new File(dir, "decrypted");
+
+        AES.ProcessingResult result = AeadCipher.process(original, encrypted, encryption, true, parallelThreshold,
+                compression, Cancellation.NEVER);
+        assertTrue(result.isSuccess(), result.getDetails());
+        assertEquals(FileFormat.AUTHENTICATED, FileFormat.probe(encrypted));
+        byte expected = size > 0 && compression == AeadCipher.Compression.DEFLATE ? (byte) 1 : (byte) 0;
+        assertEquals(expected, Files.readAllBytes(encrypted.toPath())[COMPRESSION_OFFSET]);
+
+        result = AeadCipher.process(encrypted, decrypted, decryption, false, parallelThreshold, Cancellation.NEVER);
+        assertTrue(result.isSuccess(), result.getDetails());
+        assertArrayEquals(data, Files.readAllBytes(decrypted.toPath()));
+    }
+
+    @Test
+    void rejectsFlippedByte() throws IOException {
+        File encrypted = encryptRandom(2 * AeadCipher.CHUNK_SIZE + 100);
+        try (RandomAccessFile file = new RandomAccessFile(encrypted, "rw")) {
+            long position = AeadCipher.HEADER_SIZE + AeadCipher.CHUNK_SIZE + 10;
+            file.seek(position);
+            int value = file.read();
+            file.seek(position);
+            file.write(value ^ 1);
+        }
+
+        assertDecryptionFails(encrypted, AES.ProcessingError.DECRYPTION_ERROR);
+    }
+
+    @Test
+    void rejectsTruncatedTail() throws IOException {
+        File encrypted = encryptRandom(2 * AeadCipher.CHUNK_SIZE + 100);
+        try (RandomAccessFile file = new RandomAccessFile(encrypted, "rw")) {
+            file.setLength(file.length() - 10);
+        }
+
+        assertDecryptionFails(encrypted, AES.ProcessingError.DECRYPTION_ERROR);
+    }
+
+    @Test
+    void reportsWrongPassword() throws IOException, GeneralSecurityException {
+        File encrypted = encryptRandom(1000);
+        AES.Session wrong = new AES.Session("battery staple", false);
+
+        AES.ProcessingResult result = AeadCipher.process(encrypted, new File(dir, "decrypted"), wrong, false,
+                Long.MAX_VALUE, Cancellation.NEVER);
+        assertEquals(AES.ProcessingError.INVALID_KEY, result.getError());
+    }
+
+    private void assertDecryptionFails(File encrypted, AES.ProcessingError error) {
+        for (long parallelThreshold : new long[]{Long.MAX_VALUE, 0}) {
+            AES.ProcessingResult result = AeadCipher.process(encrypted, new File(dir, "decrypted"), decryption,
+                    false, parallelThreshold, Cancellation.NEVER);
+            assertEquals(error, result.getError(), result.getDetails());
+        }
+    }
+
+    private File encryptRandom(int size) throws IOException {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        File original = write("original", data);
+        File encrypted = new File(dir, "encrypted");
+        AES.ProcessingResult result = AeadCipher.process(original, encrypted, encryption, true, Long.MAX_VALUE,
+                AeadCipher.Compression.NONE, Cancellation.NEVER);
+        assertTrue(result.isSuccess(), result.getDetails());
+        return encrypted;
+    }
+
+    private File write(String name, byte[] data) throws IOException {
+        File file = new File(dir, name);
+        Files.write(file.toPath(), data);
+        return file;
+    }
+
+    // Compressible content, so a file asked to be deflated is
+    private static byte[] text(int size) {
+        StringBuilder text = new StringBuilder(size + 32);
+        for (int line = 0; text.length() < size; line++) {
+            text.append("Line ").append(line).append(" of the test file\n");
+        }
+        return text.substring(0, size).getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,101 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ArchiveCipherTest {
+    private static final String PASSWORD = "correct horse";
+
+    private static AES.Session encryption;
+
+    @TempDir
+    File dir;
+
+    @BeforeAll
+    static void createSession() throws GeneralSecurityException {
+        encryption = new AES.Session(PASSWORD, true);
+    }
+
+    @Test
+    void packsAndUnpacks() throws IOException {
+        List<String> names = Arrays.asList("empty.txt", "notes.txt", "photos/large.bin");
+        List<byte[]> contents = Arrays.asList(new byte[0], "Some notes\n".getBytes(StandardCharsets.UTF_8),
+                random(3 * 1024 * 1024 + 5));
+        File archive = pack(names, contents);
+
+        File target = new File(dir, "target");
+        assertEquals(0, unpack(archive, target));
+        for (int i = 0; i < names.size(); i++) {
+            assertArrayEquals(contents.get(i), Files.readAllBytes(new File(target, names.get(i)).toPath()));
+        }
+    }
+
+    @Test
+    void unpackRefusesNamesOutsideTheTarget() throws IOException {
+        List<String> names = Arrays.asList("../escaped.txt", "inside.txt");
+        List<byte[]> contents = Arrays.asList("outside".getBytes(StandardCharsets.UTF_8),
+                "inside".getBytes(StandardCharsets.UTF_8));
+        File archive = pack(names, contents);
+
+        File target = new File(dir, "target");
+        assertEquals(1, unpack(archive, target));
+        assertFalse(new File(dir, "escaped.txt").exists());
+        assertTrue(new File(target, "inside.txt").exists());
+    }
+
+    @Test
+    void unpackReportsWrongPassword() throws IOException {
+        File archive = pack(Arrays.asList("notes.txt"), Arrays.asList("Some notes\n".getBytes(StandardCharsets.UTF_8)));
+        File passwordFile = new File(dir, "wrong-password");
+        Files.write(passwordFile.toPath(), "battery staple".getBytes(StandardCharsets.UTF_8));
+
+        File target = new File(dir, "target");
+        assertEquals(1, AegisCli.run(new String[]{"unpack", "--quiet", "--password-file", passwordFile.getPath(),
+                "-C", target.getPath(), archive.getPath()}));
+        assertFalse(new File(target, "notes.txt").exists());
+    }
+
+    private File pack(List<String> names, List<byte[]> contents) throws IOException {
+        File sources = new File(dir, "sources");
+        List<File> files = new ArrayList<>();
+        for (int i = 0; i < names.size(); i++) {
+            File file = new File(sources, "file" + i);
+            Files.createDirectories(sources.toPath());
+            Files.write(file.toPath(), contents.get(i));
+            files.add(file);
+        }
+
+        File archive = new File(dir, "archive.aegis");
+        AES.ProcessingResult result = ArchiveCipher.pack(files, names, archive, encryption, Cancellation.NEVER);
+        assertTrue(result.isSuccess(), result.getDetails());
+        assertEquals(FileFormat.ARCHIVE, FileFormat.probe(archive));
+        return archive;
+    }
+
+    // Goes through the command line, which is where names are checked against the target folder
+    private int unpack(File archive, File target) throws IOException {
+        File passwordFile = new File(dir, "password");
+        Files.write(passwordFile.toPath(), PASSWORD.getBytes(StandardCharsets.UTF_8));
+        return AegisCli.run(new String[]{"unpack", "--quiet", "--password-file", passwordFile.getPath(),
+                "-C", target.getPath(), archive.getPath()});
+    }
+
+    private static byte[] random(int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+}
@@ -0,0 +1,191 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.Random;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+class InPlaceCipherTest {
+    // Three chunks, the last one short
+    private static final int SIZE = 2 * ParallelCipher.CHUNK_SIZE + 1000;
+    // Chunk steps plus moving the first bytes and writing the header, for both directions
+    private static final int STEPS = 5;
+    // The journal checks a chunk in blocks of this size, a write is taken to never tear one of them
+    private static final int BLOCK_SIZE = 4096;
+
+    private static AES.Session encryption;
+    private static AES.Session decryption;
+
+    @TempDir
+    File dir;
+
+    @BeforeAll
+    static void createSessions() throws GeneralSecurityException {
+        encryption = new AES.Session("correct horse", true);
+        decryption = new AES.Session("correct horse", false);
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {0, 1, 2, 3, 4})
+    void resumesInterruptedEncryption(int steps) throws Exception {
+        byte[] data = random(steps);
+        File file = write(data);
+
+        crash(file, encryption, true, steps, false);
+        assertTrue(InPlaceCipher.journalFor(file).exists());
+
+        assertSuccess(InPlaceCipher.process(file, encryption, true));
+        assertFalse(InPlaceCipher.journalFor(file).exists());
+        assertEquals(FileFormat.IN_PLACE, FileFormat.probe(file));
+
+        assertSuccess(InPlaceCipher.process(file, decryption, false));
+        assertArrayEquals(data, Files.readAllBytes(file.toPath()));
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {0, 1, 2, 3, 4})
+    void resumesInterruptedDecryption(int steps) throws Exception {
+        byte[] data = random(steps);
+        File file = write(data);
+        assertSuccess(InPlaceCipher.process(file, encryption, true));
+
+        crash(file, decryption, false, steps, false);
+        assertTrue(InPlaceCipher.journalFor(file).exists());
+
+        assertSuccess(InPlaceCipher.process(file, decryption, false));
+        assertFalse(InPlaceCipher.journalFor(file).exists());
+        assertArrayEquals(data, Files.readAllBytes(file.toPath()));
+    }
+
+    // The crash hits while a chunk is being written, so only some of its blocks reached the disk
+    @ParameterizedTest
+    @ValueSource(ints = {0, 1, 2})
+    void resumesTornChunk(int chunk) throws Exception {
+        byte[] data = random(chunk);
+        File file = write(data);
+
+        crash(file, encryption, true, chunk, true);
+
+        assertSuccess(InPlaceCipher.process(file, encryption, true));
+        assertSuccess(InPlaceCipher.process(file, decryption, false));
+        assertArrayEquals(data, Files.readAllBytes(file.toPath()));
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {0, 3})
+    void wrongPasswordLeavesInterruptedRun(int steps) throws Exception {
+        byte[] data = random(steps);
+        File file = write(data);
+        crash(file, encryption, true, steps, false);
+
+        AES.Session wrong = new AES.Session("battery staple", true);
+        assertEquals(AES.ProcessingError.INVALID_KEY, InPlaceCipher.process(file, wrong, true).getError());
+        assertTrue(InPlaceCipher.journalFor(file).exists());
+
+        assertSuccess(InPlaceCipher.process(file, encryption, true));
+        assertSuccess(InPlaceCipher.process(file, decryption, false));
+        assertArrayEquals(data, Files.readAllBytes(file.toPath()));
+    }
+
+    @Test
+    void rejectsFlippedByte() throws Exception {
+        File file = encrypted(random(0));
+        try (RandomAccessFile raw = new RandomAccessFile(file, "rw")) {
+            long position = ParallelCipher.CHUNK_SIZE + 10;
+            raw.seek(position);
+            int value = raw.read();
+            raw.seek(position);
+            raw.write(value ^ 1);
+        }
+
+        assertRejected(file);
+    }
+
+    @Test
+    void rejectsTruncatedFile() throws Exception {
+        File file = encrypted(random(0));
+        try (RandomAccessFile raw = new RandomAccessFile(file, "rw")) {
+            raw.setLength(raw.length() - 10);
+        }
+
+        assertRejected(file);
+    }
+
+    // A damaged file is refused before anything is written, so it stays exactly as it was
+    private static void assertRejected(File file) throws IOException {
+        byte[] before = Files.readAllBytes(file.toPath());
+        AES.ProcessingResult result = InPlaceCipher.process(file, decryption, false);
+        assertEquals(AES.ProcessingError.DECRYPTION_ERROR, result.getError(), result.getDetails());
+        assertFalse(InPlaceCipher.journalFor(file).exists());
+        assertArrayEquals(before, Files.readAllBytes(file.toPath()));
+    }
+
+    private File encrypted(byte[] data) throws IOException {
+        File file = write(data);
+        assertSuccess(InPlaceCipher.process(file, encryption, true));
+        return file;
+    }
+
+    // Runs the first steps of a run and stops without cleaning up, which leaves the file and journal the way
+    // a crash would. With torn set, the next step is journaled and only the first blocks of its chunk are written
+    private static void crash(File file, AES.Session session, boolean isEncryption, int steps, boolean torn)
+            throws Exception {
+        assertTrue(steps < STEPS);
+        Class<?> run = Class.forName("InPlaceCipher$Run");
+        Method start = run.getDeclaredMethod("start", FileChannel.class, File.class, AES.Session.class, boolean.class);
+        Method runStep = run.getDeclaredMethod("runStep", long.class);
+        Field journal = run.getDeclaredField("journal");
+        start.setAccessible(true);
+        runStep.setAccessible(true);
+        journal.setAccessible(true);
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            Object started = start.invoke(null, channel, InPlaceCipher.journalFor(file), session, isEncryption);
+            for (long step = 0; step < steps; step++) {
+                runStep.invoke(started, step);
+            }
+            if (torn) {
+                long offset = (long) steps * ParallelCipher.CHUNK_SIZE;
+                int size = (int) Math.min(ParallelCipher.CHUNK_SIZE, channel.size() - offset);
+                ByteBuffer before = ByteBuffer.allocate(size);
+                AES.readFully(channel, before, offset);
+                runStep.invoke(started, (long) steps);
+                int written = size / 2 / BLOCK_SIZE * BLOCK_SIZE;
+                before.position(written);
+                AES.writeFully(channel, before, offset + written);
+            }
+            ((FileChannel) journal.get(started)).close();
+        }
+    }
+
+    private static void assertSuccess(AES.ProcessingResult result) {
+        assertTrue(result.isSuccess(), result.getDetails());
+    }
+
+    private File write(byte[] data) throws IOException {
+        File file = new File(dir, "file.bin");
+        Files.write(file.toPath(), data);
+        return file;
+    }
+
+    private static byte[] random(int seed) {
+        byte[] data = new byte[SIZE];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+}